@@ -16,18 +16,21 @@
 
 package com.google.android.panoramio;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
 
 /**
  *  Utilities for loading a bitmap from a URL
@@ -48,28 +51,53 @@ public class BitmapUtils {
      * @return The bitmap, or null if it could not be loaded
      */
     public static Bitmap loadBitmap(String url) {
-        Bitmap bitmap = null;
+        final byte[] data = loadData(url);
+        if (data == null) {
+            return null;
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length);
+    }
+
+    /**
+     * Downloads the encoded image at the specified url. This can take a while, so it
+     * should not be called from the UI thread.
+     * 
+     * @param url The location of the bitmap asset
+     * 
+     * @return The encoded image, or null if it could not be downloaded
+     * 
+     * @see ImageCache
+     */
+    public static byte[] loadData(String url) {
+        HttpEntity entity = null;
         InputStream in = null;
-        BufferedOutputStream out = null;
 
         try {
-            in = new BufferedInputStream(new URL(url).openStream(), IO_BUFFER_SIZE);
-
-            final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-            out = new BufferedOutputStream(dataStream, IO_BUFFER_SIZE);
-            copy(in, out);
-            out.flush();
+            // Images are downloaded on the connections shared with the searches
+            HttpResponse response = HttpManager.execute(new HttpGet(url));
+            entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+                Log.e(TAG, "Could not load Bitmap from: " + url + ", " +
+                        response.getStatusLine());
+                return null;
+            }
+            in = new BufferedInputStream(entity.getContent(), IO_BUFFER_SIZE);
 
-            final byte[] data = dataStream.toByteArray();
-            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+            // The buffered input stream already reads large blocks, the data is
+            // copied directly into the output buffer
+            final ByteArrayOutputStream dataStream = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+            copy(in, dataStream);
+            return dataStream.toByteArray();
         } catch (IOException e) {
             Log.e(TAG, "Could not load Bitmap from: " + url);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid Bitmap url: " + url);
         } finally {
             closeStream(in);
-            closeStream(out);
+            HttpManager.consume(entity);
         }
 
-        return bitmap;
+        return null;
     }
 
     /**
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.panoramio;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Holds the HttpClient shared by all the requests sent to Panoramio. Searches and
+ * image downloads reuse the same pool of kept-alive connections.
+ */
+public class HttpManager {
+    private static final String TAG = "Panoramio";
+
+    /**
+     * Each host gets enough connections for all the thumbnail threads
+     */
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+    private static final int MAX_TOTAL_CONNECTIONS = 8;
+
+    private static final HttpClient sClient;
+
+    static {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+
+        sClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry),
+                params);
+    }
+
+    private HttpManager() {
+    }
+
+    /**
+     * Executes a request with the shared HttpClient. The entity of the response must
+     * be consumed, with {@link #consume(HttpEntity)}, to give the connection back.
+     * 
+     * @param request The request to execute. Can be aborted from another thread.
+     * @return The response
+     * @throws IOException If the request failed or was aborted
+     */
+    public static HttpResponse execute(HttpUriRequest request) throws IOException {
+        return sClient.execute(request);
+    }
+
+    /**
+     * Consumes the remaining content of the entity, which releases its connection.
+     * 
+     * @param entity The entity to consume. May be null.
+     */
+    public static void consume(HttpEntity entity) {
+        if (entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            }
+        }
+    }
+}
@@ -18,17 +18,32 @@ package com.google.android.panoramio;
 
 import android.content.Context;
 import android.database.DataSetObserver;
+import android.graphics.Bitmap;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
 /**
- * Adapter used to bind data for the main list of photos
+ * Adapter used to bind data for the main list of photos. Thumbnails are loaded for
+ * the visible rows and a few rows around them, and released for the rows far off
+ * screen. The adapter must be set as the list's scroll listener.
  */
-public class ImageAdapter extends BaseAdapter {
+public class ImageAdapter extends BaseAdapter implements AbsListView.OnScrollListener {
+
+    /**
+     * Number of rows above and below the screen whose thumbnails are loaded ahead
+     */
+    private static final int PREFETCH_DISTANCE = 4;
+
+    /**
+     * Number of rows above and below the screen whose thumbnails are kept. Rows
+     * further away release their thumbnails.
+     */
+    private static final int RELEASE_DISTANCE = 12;
 
     /**
      * Maintains the state of our data
@@ -39,6 +54,12 @@ public class ImageAdapter extends BaseAdapter {
     
     private MyDataSetObserver mObserver;
 
+    /**
+     * The range of positions, end excluded, whose thumbnails may be held
+     */
+    private int mKeepStart;
+    private int mKeepEnd;
+
     /**
      * Used by the {@link ImageManager} to report changes in the list back to
      * this adapter.
@@ -51,6 +72,9 @@ public class ImageAdapter extends BaseAdapter {
 
         @Override
         public void onInvalidated() {
+            // The items of the previous search are gone, so are their positions
+            mKeepStart = 0;
+            mKeepEnd = 0;
             notifyDataSetInvalidated();
         }
     }
@@ -113,7 +137,13 @@ public class ImageAdapter extends BaseAdapter {
         PanoramioItem s = mImageManager.get(position);
 
         ImageView i = (ImageView) view.findViewById(R.id.image);
-        i.setImageBitmap(s.getBitmap());
+        Bitmap b = mImageManager.getThumbnail(s);
+        if (b != null) {
+            i.setImageBitmap(b);
+        } else {
+            // The thumbnail is still loading
+            i.setImageResource(R.drawable.thumbnail_placeholder);
+        }
         i.setBackgroundResource(R.drawable.picture_frame);
         
         TextView t = (TextView) view.findViewById(R.id.title);
@@ -124,4 +154,32 @@ public class ImageAdapter extends BaseAdapter {
         return view;
     }
 
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        final int count = getCount();
+        final int lastVisibleItem = firstVisibleItem + visibleItemCount;
+
+        // Release the rows that moved too far off screen
+        int start = Math.max(0, firstVisibleItem - RELEASE_DISTANCE);
+        int end = Math.min(count, lastVisibleItem + RELEASE_DISTANCE);
+        if (mKeepStart < start) {
+            mImageManager.releaseThumbnails(mKeepStart, Math.min(start, mKeepEnd));
+        }
+        if (mKeepEnd > end) {
+            mImageManager.releaseThumbnails(Math.max(end, mKeepStart), mKeepEnd);
+        }
+        mKeepStart = start;
+        mKeepEnd = end;
+
+        // Visible rows load their thumbnails in getView(), load the nearby ones ahead
+        start = Math.max(0, firstVisibleItem - PREFETCH_DISTANCE);
+        end = Math.min(count, lastVisibleItem + PREFETCH_DISTANCE);
+        for (int position = start; position < end; position++) {
+            mImageManager.getThumbnail(mImageManager.get(position));
+        }
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.panoramio;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the thumbnails and medium images downloaded from Panoramio, so that scrolling
+ * back through the results or opening an image again does not download it again.
+ * 
+ * Recently used bitmaps are held in memory through soft references, like the
+ * thumbnails held by {@link PanoramioItem}, and are dropped when memory runs low.
+ * Downloaded images are also written to the application's cache directory, in a file
+ * named after the MD5 of their URL, and the least recently used files are deleted
+ * when they use more than {@link #DISK_CACHE_SIZE} bytes.
+ * 
+ * This class is thread safe.
+ */
+public class ImageCache {
+    private static final String TAG = "Panoramio";
+
+    private static final String CACHE_DIRECTORY = "images";
+
+    /**
+     * Number of bitmaps kept in memory
+     */
+    private static final int MAX_MEMORY_BITMAPS = 32;
+
+    /**
+     * Number of bytes used by the images kept on disk
+     */
+    private static final long DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Suffix of the files being written, which are never read nor trimmed
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static ImageCache sInstance;
+
+    private final File mDirectory;
+
+    /**
+     * Number of bytes used on disk, or -1 until the directory has been listed
+     */
+    private long mDiskSize = -1;
+
+    private final LinkedHashMap<String, SoftReference<Bitmap>> mBitmaps =
+            new LinkedHashMap<String, SoftReference<Bitmap>>(MAX_MEMORY_BITMAPS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SoftReference<Bitmap>> eldest) {
+            return size() > MAX_MEMORY_BITMAPS;
+        }
+    };
+
+    private ImageCache(Context c) {
+        mDirectory = new File(c.getCacheDir(), CACHE_DIRECTORY);
+    }
+
+    public static synchronized ImageCache getInstance(Context c) {
+        if (sInstance == null) {
+            sInstance = new ImageCache(c.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Loads the image at the specified URL from memory, from the disk, or else from
+     * the network. Must not be called from the UI thread.
+     * 
+     * @param url The location of the image
+     * 
+     * @return The bitmap, or null if it could not be loaded
+     */
+    public Bitmap loadBitmap(String url) {
+        Bitmap bitmap = getCachedBitmap(url);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        File file = new File(mDirectory, getFileName(url));
+        bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap != null) {
+            // Recently read files are the last ones to be deleted
+            file.setLastModified(System.currentTimeMillis());
+        } else {
+            byte[] data = BitmapUtils.loadData(url);
+            if (data == null) {
+                return null;
+            }
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+            if (bitmap == null) {
+                return null;
+            }
+            write(file, data);
+        }
+
+        synchronized (this) {
+            mBitmaps.put(url, new SoftReference<Bitmap>(bitmap));
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the image at the specified URL if it is in memory. Can be called from
+     * the UI thread.
+     * 
+     * @param url The location of the image
+     * 
+     * @return The bitmap, or null if it is not in memory
+     */
+    public synchronized Bitmap getCachedBitmap(String url) {
+        SoftReference<Bitmap> reference = mBitmaps.get(url);
+        return reference != null ? reference.get() : null;
+    }
+
+    /**
+     * @return The name of the file holding the image at the specified URL: the MD5
+     *         of the URL, in hexadecimal
+     */
+    private static String getFileName(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes an image to a unique temporary file, which is renamed to the file of
+     * the image once complete. A partially written image, left by a killed process
+     * or seen by a concurrent {@link #loadBitmap(String)}, would otherwise decode
+     * with its bottom missing.
+     */
+    private void write(File file, byte[] data) {
+        synchronized (this) {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                Log.w(TAG, "Could not create cache directory: " + mDirectory);
+                return;
+            }
+        }
+
+        File temp = null;
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            temp = File.createTempFile(file.getName(), TEMP_SUFFIX, mDirectory);
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.close();
+            out = null;
+            written = temp.renameTo(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache image: " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close cached image: " + file, e);
+                }
+            }
+            if (!written && temp != null) {
+                temp.delete();
+            }
+        }
+
+        if (written) {
+            trim(data.length);
+        }
+    }
+
+    /**
+     * Accounts for a new file and, if the cache is too large, deletes the least
+     * recently used files down to 3/4 of {@link #DISK_CACHE_SIZE} so that the next
+     * writes do not need to trim again.
+     * 
+     * @param written The size of the file just written
+     */
+    private synchronized void trim(long written) {
+        File[] files = null;
+        if (mDiskSize < 0) {
+            // The directory is listed once, the new file is then already counted
+            files = listFiles();
+            mDiskSize = 0;
+            for (File file : files) {
+                mDiskSize += file.length();
+            }
+        } else {
+            mDiskSize += written;
+        }
+        if (mDiskSize <= DISK_CACHE_SIZE) {
+            return;
+        }
+        if (files == null) {
+            files = listFiles();
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        long target = DISK_CACHE_SIZE * 3 / 4;
+        for (int i = 0; i < files.length && mDiskSize > target; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                mDiskSize -= length;
+            }
+        }
+    }
+
+    private File[] listFiles() {
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return !name.endsWith(TEMP_SUFFIX);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+}
@@ -19,7 +19,6 @@ package com.google.android.panoramio;
 import android.app.ListActivity;
 import android.content.Context;
 import android.content.Intent;
-import android.database.DataSetObserver;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -54,7 +53,7 @@ public class ImageList extends ListActivity {
      * Observer used to turn the progress indicator off when the {@link ImageManager} is
      * done downloading.
      */
-    private class MyDataSetObserver extends DataSetObserver {
+    private class MyDataSetObserver extends ImageManager.ItemObserver {
         @Override
         public void onChanged() {
             if (!mImageManager.isLoading()) {
@@ -63,6 +62,11 @@ public class ImageList extends ListActivity {
             }
         }
 
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            // Appending items never ends the download
+        }
+
         @Override
         public void onInvalidated() {
         }
@@ -77,7 +81,9 @@ public class ImageList extends ListActivity {
         LayoutInflater inflater = (LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         View footer = inflater.inflate(R.layout.list_footer, listView, false);
         listView.addFooterView(footer, null, false);
-        setListAdapter(new ImageAdapter(this));
+        ImageAdapter adapter = new ImageAdapter(this);
+        setListAdapter(adapter);
+        listView.setOnScrollListener(adapter);
 
         // Theme.Light sets a background on our list.
         listView.setBackgroundDrawable(null);
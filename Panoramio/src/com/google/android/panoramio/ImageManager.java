@@ -18,12 +18,9 @@ package com.google.android.panoramio;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+
+import com.google.android.maps.GeoPoint;
 
 import android.content.Context;
 import android.database.DataSetObserver;
@@ -33,11 +30,19 @@ import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is responsible for downloading and parsing the search results for
@@ -45,6 +50,21 @@ import java.util.ArrayList;
  * is reported back through the DataSetObserver set in
  * {@link #addObserver(DataSetObserver). State is held in memory by in memory
  * maintained by a single instance of the ImageManager class.
+ * 
+ * The search results are published as soon as they are parsed, without their
+ * thumbnails. Thumbnails are only loaded, by a small pool of threads, for the items
+ * the list asks for with {@link #getThumbnail(PanoramioItem)}, and are released with
+ * {@link #releaseThumbnails(int, int)} once the items are far off screen. The memory
+ * used by thumbnails therefore does not depend on the number of search results.
+ * 
+ * Changes are not reported to the observers as they happen. They are coalesced and
+ * reported at most once per frame, with {@link ItemObserver#onItemRangeInserted(int, int)}
+ * when items were only appended. The items can be read from any thread, but the
+ * ImageManager must only be modified from the UI thread.
+ * 
+ * Search results are cached per tile by a {@link TileCache}. A search only downloads
+ * the tiles of its area that are not cached, and items found in several tiles are
+ * displayed once.
  */
 public class ImageManager {
    private static final String TAG = "Panoramio";
@@ -52,7 +72,59 @@ public class ImageManager {
     /**
      * Base URL for Panoramio's web API
      */
-    private static final String THUMBNAIL_URL = "//www.panoramio.com/map/get_panoramas.php?order=popularity&set=public&from=0&to=20&miny=%f&minx=%f&maxy=%f&maxx=%f&size=thumbnail";
+    private static final String THUMBNAIL_URL = "//www.panoramio.com/map/get_panoramas.php?order=popularity&set=public&from=%d&to=%d&miny=%f&minx=%f&maxy=%f&maxx=%f&size=thumbnail";
+
+    /**
+     * Number of search results wanted in the search area. Tiles are larger than the
+     * search area, the number of results requested for a tile is therefore scaled by
+     * the ratio of the tile area to the search area.
+     */
+    private static final int SEARCH_RESULTS_COUNT = 20;
+
+    /**
+     * Maximum number of search results requested for a tile
+     */
+    private static final int MAX_TILE_RESULTS_COUNT = 100;
+
+    /**
+     * Number of parsed items posted at once to the UI thread
+     */
+    private static final int PUBLISH_BATCH_SIZE = 10;
+
+    /**
+     * Number of thumbnails loaded concurrently
+     */
+    private static final int THUMBNAIL_THREADS_COUNT = 4;
+
+    /**
+     * Changes happening within this delay, in milliseconds, are reported to the
+     * observers at once
+     */
+    private static final int NOTIFY_DELAY = 16;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "ThumbnailLoader #" + mCount.getAndIncrement());
+        }
+    };
+
+    /**
+     * Loads the thumbnails requested by the list
+     */
+    private static final ExecutorService sThumbnailExecutor =
+            Executors.newFixedThreadPool(THUMBNAIL_THREADS_COUNT, sThreadFactory);
+
+    /**
+     * Runs the searches, one at a time
+     */
+    private static final ExecutorService sSearchExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "PanoramioSearch");
+        }
+    });
 
     /**
      * Used to post results back to the UI thread
@@ -65,20 +137,79 @@ public class ImageManager {
     private static ImageManager sInstance;
     
     /**
-     * Holds the images and related data that have been downloaded
+     * Holds the images and related data that have been downloaded and reported to
+     * the observers. Only modified when the observers are notified.
+     */
+    private CopyOnWriteArrayList<PanoramioItem> mImages =
+            new CopyOnWriteArrayList<PanoramioItem>();
+
+    /**
+     * Holds the images added since the observers were last notified
+     */
+    private ArrayList<PanoramioItem> mPendingImages = new ArrayList<PanoramioItem>();
+
+    /**
+     * True if something other than the addition of images changed since the
+     * observers were last notified
      */
-    private ArrayList<PanoramioItem> mImages = new ArrayList<PanoramioItem>();
+    private boolean mChanged;
+
+    /**
+     * True if the notification of the observers is scheduled
+     */
+    private boolean mNotifyScheduled;
+
+    private final Runnable mNotifier = new Runnable() {
+        public void run() {
+            dispatchChanges();
+        }
+    };
     
     /**
      * Observers interested in changes to the current search results
      */
-    private ArrayList<WeakReference<DataSetObserver>> mObservers = 
-            new ArrayList<WeakReference<DataSetObserver>>();
+    private CopyOnWriteArrayList<WeakReference<DataSetObserver>> mObservers = 
+            new CopyOnWriteArrayList<WeakReference<DataSetObserver>>();
     
     /**
      * True if we are in the process of loading
      */
-    private boolean mLoading;
+    private volatile boolean mLoading;
+
+    /**
+     * Incremented for each new search. Results of a previous search are ignored.
+     * Only modified on the UI thread, read by the search and thumbnail threads.
+     */
+    private volatile int mGeneration;
+
+    /**
+     * The search being executed, cancelled when a new search starts
+     */
+    private SearchTask mSearch;
+
+    /**
+     * Search results of the areas searched recently
+     */
+    private TileCache mTileCache = new TileCache();
+
+    /**
+     * Ids of the items displayed, used to skip items found in several tiles
+     */
+    private HashSet<Long> mIds = new HashSet<Long>();
+
+    /**
+     * Ids of the items whose thumbnail is being loaded. Queued loads are skipped
+     * once their item is released.
+     */
+    private Set<Long> mWantedThumbnails = Collections.synchronizedSet(new HashSet<Long>());
+
+    /**
+     * The current search area. Cached tiles may contain items outside of it.
+     */
+    private float mMinLong;
+    private float mMaxLong;
+    private float mMinLat;
+    private float mMaxLat;
     
     private Context mContext;
     
@@ -124,20 +255,87 @@ public class ImageManager {
     }
     
     /**
-     * Clear all downloaded content
+     * Clear all downloaded content. The observers are told that the data set is
+     * invalidated.
      */
     public void clear() {
         mImages.clear();   
-        notifyObservers();
+        mPendingImages.clear();
+        mIds.clear();
+        mWantedThumbnails.clear();
+        mChanged = false;
+        notifyInvalidated();
     }
     
     /**
-     * Add an item to and notify observers of the change.
-     * @param item The item to add
+     * Add several items at once and schedule the notification of the observers.
+     * @param items The items to add
      */
-    private void add(PanoramioItem item) {
-        mImages.add(item);   
-        notifyObservers();
+    private void addAll(ArrayList<PanoramioItem> items) {
+        for (PanoramioItem item : items) {
+            add(item);
+        }
+        scheduleNotify();
+    }
+
+    /**
+     * Adds an item if it lies in the current search area and is not displayed yet.
+     * The item is visible to the observers once they are notified.
+     * 
+     * @return True if the item was added
+     */
+    private boolean add(PanoramioItem item) {
+        if (!isInArea(item, mMinLong, mMaxLong, mMinLat, mMaxLat) || !mIds.add(item.getId())) {
+            return false;
+        }
+        mPendingImages.add(item);
+        return true;
+    }
+
+    /**
+     * @return True if the item lies in the specified area. The area can cross the 180th
+     *         meridian.
+     */
+    private static boolean isInArea(PanoramioItem item, float minLong, float maxLong,
+            float minLat, float maxLat) {
+        GeoPoint location = item.getLocation();
+        float latitude = (float) location.getLatitudeE6() / Panoramio.MILLION;
+        float longitude = (float) location.getLongitudeE6() / Panoramio.MILLION;
+        if (latitude < minLat || latitude > maxLat) {
+            return false;
+        }
+
+        float width = getWidth(minLong, maxLong);
+        float offset = (longitude - minLong) % 360f;
+        if (offset < 0) {
+            offset += 360f;
+        }
+        return width >= 360f || offset <= width;
+    }
+
+    /**
+     * @return The width, in degrees, of the area between the specified longitudes
+     */
+    private static float getWidth(float minLong, float maxLong) {
+        float width = maxLong - minLong;
+        return width < 0 ? width + 360f : width;
+    }
+
+    /**
+     * Returns the number of results to request for a tile so that about
+     * {@link #SEARCH_RESULTS_COUNT} of them lie in the search area, assuming the
+     * results are spread evenly over the tile.
+     */
+    private static int getResultsCount(TileCache.Tile tile, float minLong, float maxLong,
+            float minLat, float maxLat) {
+        float area = Math.min(360f, getWidth(minLong, maxLong)) * (maxLat - minLat);
+        if (area <= 0) {
+            return MAX_TILE_RESULTS_COUNT;
+        }
+        float tileArea = (tile.getMaxLong() - tile.getMinLong())
+                * (tile.getMaxLat() - tile.getMinLat());
+        int count = (int) Math.ceil(SEARCH_RESULTS_COUNT * tileArea / area);
+        return Math.max(SEARCH_RESULTS_COUNT, Math.min(MAX_TILE_RESULTS_COUNT, count));
     }
     
     /**
@@ -163,16 +361,199 @@ public class ImageManager {
     }
     
     /**
-     * Load a new set of search results for the specified area.
+     * Load a new set of search results for the specified area. Results of the cached
+     * tiles are displayed immediately, the other tiles are downloaded.
      * 
+     * @param zoom The zoom level of the map the area was chosen on
      * @param minLong The minimum longitude for the search area
      * @param maxLong The maximum longitude for the search area
      * @param minLat The minimum latitude for the search area
      * @param maxLat The minimum latitude for the search area
      */
-    public void load(float minLong, float maxLong, float minLat, float maxLat) {
+    public void load(int zoom, float minLong, float maxLong, float minLat, float maxLat) {
         mLoading = true;
-        new NetworkThread(minLong, maxLong, minLat, maxLat).start();
+        mGeneration++;
+        if (mSearch != null) {
+            mSearch.cancel();
+            mSearch = null;
+        }
+        // The thumbnails of the previous search are no longer needed
+        mWantedThumbnails.clear();
+        mMinLong = minLong;
+        mMaxLong = maxLong;
+        mMinLat = minLat;
+        mMaxLat = maxLat;
+
+        ArrayList<TileCache.Tile> missing = new ArrayList<TileCache.Tile>();
+        for (TileCache.Tile tile : TileCache.getTiles(zoom, minLong, maxLong, minLat, maxLat)) {
+            ArrayList<PanoramioItem> items = mTileCache.get(tile);
+            if (items == null) {
+                missing.add(tile);
+                continue;
+            }
+            for (PanoramioItem item : items) {
+                add(item);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            mLoading = false;
+            mChanged = true;
+        } else {
+            mSearch = new SearchTask(mGeneration, missing, new HashSet<Long>(mIds));
+            sSearchExecutor.execute(mSearch);
+        }
+        // Cached results are displayed without waiting for the next frame
+        dispatchChanges();
+    }
+
+    /**
+     * Called on the UI thread when a tile has been downloaded completely.
+     */
+    private void onTileLoaded(TileCache.Tile tile, ArrayList<PanoramioItem> items) {
+        mTileCache.put(tile, items);
+    }
+
+    /**
+     * Returns the thumbnail of an item if it is in memory. Otherwise the thumbnail is
+     * loaded in the background and the observers are notified once it is available.
+     * Must be called on the UI thread.
+     * 
+     * @param item The item whose thumbnail is needed
+     * @return The thumbnail, or null if it is being loaded
+     */
+    public Bitmap getThumbnail(final PanoramioItem item) {
+        Bitmap b = item.getBitmap();
+        if (b != null) {
+            return b;
+        }
+
+        final String url = item.getThumbUrl();
+        b = ImageCache.getInstance(mContext).getCachedBitmap(url);
+        if (b != null) {
+            item.setBitmap(b);
+            return b;
+        }
+
+        final Long id = item.getId();
+        if (mWantedThumbnails.add(id)) {
+            sThumbnailExecutor.execute(new Runnable() {
+                public void run() {
+                    // The item scrolled far off screen while the load was queued
+                    if (!mWantedThumbnails.contains(id)) {
+                        return;
+                    }
+                    final Bitmap thumbnail = ImageCache.getInstance(mContext).loadBitmap(url);
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            sInstance.onThumbnailLoaded(item, thumbnail);
+                        }
+                    });
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Releases the thumbnails of the items in the specified range of positions. The
+     * thumbnails which are still queued are not loaded. Must be called on the UI thread.
+     * 
+     * @param start The position of the first item to release
+     * @param end The position after the last item to release
+     */
+    public void releaseThumbnails(int start, int end) {
+        end = Math.min(end, mImages.size());
+        for (int i = Math.max(start, 0); i < end; i++) {
+            PanoramioItem item = mImages.get(i);
+            item.setBitmap(null);
+            mWantedThumbnails.remove(item.getId());
+        }
+    }
+
+    /**
+     * Called on the UI thread when the thumbnail of an item has been loaded.
+     * 
+     * @param item The item whose thumbnail was loaded
+     * @param b The thumbnail, or null if it could not be loaded
+     */
+    private void onThumbnailLoaded(PanoramioItem item, Bitmap b) {
+        // Released meanwhile. The thumbnail stays in the ImageCache if needed again.
+        if (!mWantedThumbnails.remove(item.getId())) {
+            return;
+        }
+        if (b != null) {
+            item.setBitmap(b);
+            mChanged = true;
+            scheduleNotify();
+        }
+    }
+
+    /**
+     * Called on the UI thread once the search results have been downloaded.
+     * 
+     * @param generation The search that finished
+     */
+    private void onLoadFinished(int generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mSearch = null;
+        mLoading = false;
+        mChanged = true;
+        scheduleNotify();
+    }
+
+    /**
+     * Schedules the notification of the observers, unless it is already scheduled.
+     */
+    private void scheduleNotify() {
+        if (!mNotifyScheduled) {
+            mNotifyScheduled = true;
+            mHandler.postDelayed(mNotifier, NOTIFY_DELAY);
+        }
+    }
+
+    /**
+     * Publishes the pending images and reports all the changes since the last
+     * notification to the observers.
+     */
+    private void dispatchChanges() {
+        if (mNotifyScheduled) {
+            mHandler.removeCallbacks(mNotifier);
+            mNotifyScheduled = false;
+        }
+
+        final int start = mImages.size();
+        final int count = mPendingImages.size();
+        if (count > 0) {
+            mImages.addAll(mPendingImages);
+            mPendingImages.clear();
+        }
+
+        if (mChanged) {
+            mChanged = false;
+            notifyObservers();
+        } else if (count > 0) {
+            notifyItemRangeInserted(start, count);
+        }
+    }
+
+    /**
+     * Reports appended items to the observers. Observers which are not
+     * {@link ItemObserver ItemObservers} are told that the data set changed.
+     */
+    private void notifyItemRangeInserted(int start, int count) {
+        for (WeakReference<DataSetObserver> weak : mObservers) {
+            DataSetObserver obs = weak.get();
+            if (obs instanceof ItemObserver) {
+                ((ItemObserver) obs).onItemRangeInserted(start, count);
+            } else if (obs != null) {
+                obs.onChanged();
+            } else {
+                mObservers.remove(weak);
+            }
+        }
     }
     
     /**
@@ -180,116 +561,208 @@ public class ImageManager {
      * are no longer valid along the way.
      */
     private void notifyObservers() {
-        final ArrayList<WeakReference<DataSetObserver>> observers = mObservers;
-        final int count = observers.size();
-        for (int i = count - 1; i >= 0; i--) {
-            WeakReference<DataSetObserver> weak = observers.get(i);
+        for (WeakReference<DataSetObserver> weak : mObservers) {
             DataSetObserver obs = weak.get();
             if (obs != null) {
                 obs.onChanged();
             } else {
-                observers.remove(i);
+                mObservers.remove(weak);
             }
         }
-        
+    }
+
+    /**
+     * Called when the data set was cleared. The positions known by the observers no
+     * longer match any item.
+     */
+    private void notifyInvalidated() {
+        for (WeakReference<DataSetObserver> weak : mObservers) {
+            DataSetObserver obs = weak.get();
+            if (obs != null) {
+                obs.onInvalidated();
+            } else {
+                mObservers.remove(weak);
+            }
+        }
+    }
+
+    /**
+     * An observer which can also be told that items were appended to the search
+     * results, without any other change.
+     */
+    public static abstract class ItemObserver extends DataSetObserver {
+        /**
+         * Called when items were appended to the search results. Calls
+         * {@link #onChanged()} by default.
+         * 
+         * @param positionStart The position of the first appended item
+         * @param itemCount The number of appended items
+         */
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            onChanged();
+        }
     }
     
     /**
-     * This thread does the actual work of downloading and parsing data.
-     *
+     * This task does the actual work of downloading and parsing data. Tasks run one at
+     * a time on the search thread. A task is cancelled as soon as a newer search starts:
+     * its HTTP request is aborted and its remaining tiles are skipped.
      */
-    private class NetworkThread extends Thread {
+    private class SearchTask implements Runnable {
 
+        private int mGeneration;
+        private ArrayList<TileCache.Tile> mTiles;
+        private HashSet<Long> mSeenIds;
         private float mMinLong;
         private float mMaxLong;
         private float mMinLat;
         private float mMaxLat;
 
-        public NetworkThread(float minLong, float maxLong, float minLat, float maxLat) {
-            mMinLong = minLong;
-            mMaxLong = maxLong;
-            mMinLat = minLat;
-            mMaxLat = maxLat;
+        /**
+         * The request being executed, aborted when the task is cancelled
+         */
+        private volatile HttpGet mRequest;
+
+        private volatile boolean mCancelled;
+
+        /**
+         * @param generation The search this task loads
+         * @param tiles The tiles to download
+         * @param seenIds Ids of the items already displayed
+         */
+        public SearchTask(int generation, ArrayList<TileCache.Tile> tiles,
+                HashSet<Long> seenIds) {
+            mGeneration = generation;
+            mTiles = tiles;
+            mSeenIds = seenIds;
+            mMinLong = sInstance.mMinLong;
+            mMaxLong = sInstance.mMaxLong;
+            mMinLat = sInstance.mMinLat;
+            mMaxLat = sInstance.mMaxLat;
+        }
+
+        /**
+         * Cancels this task and aborts its HTTP request, if any. Can be called from
+         * any thread.
+         */
+        public void cancel() {
+            mCancelled = true;
+            HttpGet request = mRequest;
+            if (request != null) {
+                request.abort();
+            }
+        }
+
+        /**
+         * @return True if this task was cancelled or a newer search started
+         */
+        private boolean isStale() {
+            return mCancelled || mGeneration != ImageManager.this.mGeneration;
         }
 
-        @Override
         public void run() {
-            
+            try {
+                for (TileCache.Tile tile : mTiles) {
+                    if (isStale()) {
+                        return;
+                    }
+                    loadTile(tile);
+                }
+            } finally {
+                final int generation = mGeneration;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        sInstance.onLoadFinished(generation);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Downloads the search results of a tile. The tile is cached once all its
+         * results have been parsed.
+         */
+        private void loadTile(final TileCache.Tile tile) {
             String url = THUMBNAIL_URL;
-            url = String.format(url, mMinLat, mMinLong, mMaxLat, mMaxLong);
+            int count = getResultsCount(tile, mMinLong, mMaxLong, mMinLat, mMaxLat);
+            url = String.format(url, 0, count, tile.getMinLat(),
+                    tile.getMinLong(), tile.getMaxLat(), tile.getMaxLong());
+
+            HttpEntity entity = null;
             try {
                 URI uri = new URI("http", url, null);
-                HttpGet get = new HttpGet(uri);
+                mRequest = new HttpGet(uri);
+                // The task may have been cancelled before the request could be aborted
+                if (isStale()) {
+                    return;
+                }
                 
-                HttpClient client = new DefaultHttpClient();
-                HttpResponse response = client.execute(get);
-                HttpEntity entity = response.getEntity();
-                String str = convertStreamToString(entity.getContent());
-                JSONObject json = new JSONObject(str);
-                parse(json);
+                HttpResponse response = HttpManager.execute(mRequest);
+                entity = response.getEntity();
+                Reader reader = new BufferedReader(
+                        new InputStreamReader(entity.getContent(), "UTF-8"), 8 * 1024);
+                final ArrayList<PanoramioItem> items = parse(
+                        new SearchResultsParser(reader, mContext.getString(R.string.untitled)));
+                if (items == null) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        sInstance.onTileLoaded(tile, items);
+                    }
+                });
             } catch (Exception e) {
-                Log.e(TAG, e.toString());
+                if (!isStale()) {
+                    Log.e(TAG, e.toString());
+                }
+            } finally {
+                mRequest = null;
+                HttpManager.consume(entity);
             }
         }
         
-        private void parse(JSONObject json) {
-            try {
-                JSONArray array = json.getJSONArray("photos");
-                int count = array.length();
-                for (int i = 0; i < count; i++) {
-                    JSONObject obj = array.getJSONObject(i);
-
-                    long id = obj.getLong("photo_id");
-                    String title = obj.getString("photo_title");
-                    String owner = obj.getString("owner_name");
-                    String thumb = obj.getString("photo_file_url");
-                    String ownerUrl = obj.getString("owner_url");
-                    String photoUrl = obj.getString("photo_url");
-                    double latitude = obj.getDouble("latitude");
-                    double longitude = obj.getDouble("longitude");
-                    Bitmap b = BitmapUtils.loadBitmap(thumb);
-                    if (title == null) {
-                        title = mContext.getString(R.string.untitled);
-                    }
+        /**
+         * Posts the items of the search area to the UI thread, in small batches, as they
+         * are parsed.
+         * 
+         * @return All the items of the tile, including those outside of the search area,
+         *         or null if the task was cancelled while parsing
+         */
+        private ArrayList<PanoramioItem> parse(SearchResultsParser parser) throws IOException {
+            ArrayList<PanoramioItem> items = new ArrayList<PanoramioItem>();
+            ArrayList<PanoramioItem> batch = new ArrayList<PanoramioItem>(PUBLISH_BATCH_SIZE);
+            PanoramioItem item;
+            while ((item = parser.next()) != null) {
+                if (isStale()) {
+                    return null;
+                }
+                items.add(item);
+                if (!isInArea(item, mMinLong, mMaxLong, mMinLat, mMaxLat)
+                        || !mSeenIds.add(item.getId())) {
+                    continue;
+                }
 
-                    final PanoramioItem item = new PanoramioItem(id, thumb, b,
-                            (int) (latitude * Panoramio.MILLION),
-                            (int) (longitude * Panoramio.MILLION), title, owner,
-                            ownerUrl, photoUrl);
-                    final boolean done = i == count - 1;
-                    mHandler.post(new Runnable() {
-                        public void run() {
-                            
-                            sInstance.mLoading = !done;
-                            sInstance.add(item);
-                        }
-                    });
+                batch.add(item);
+                if (batch.size() == PUBLISH_BATCH_SIZE) {
+                    publish(batch);
+                    batch = new ArrayList<PanoramioItem>(PUBLISH_BATCH_SIZE);
                 }
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
             }
+            if (!batch.isEmpty()) {
+                publish(batch);
+            }
+            return items;
         }
 
-        private String convertStreamToString(InputStream is) {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is), 8*1024);
-            StringBuilder sb = new StringBuilder();
-     
-            String line = null;
-            try {
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line + "\n");
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        private void publish(final ArrayList<PanoramioItem> items) {
+            final int generation = mGeneration;
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (generation == sInstance.mGeneration) {
+                        sInstance.addAll(items);
+                    }
                 }
-            }
-     
-            return sb.toString();
+            });
         }
 
     }
@@ -133,7 +133,7 @@ public class Panoramio extends MapActivity implements OnClickListener {
         mImageManager.clear();
         
         // Start downloading
-        mImageManager.load(minLong, maxLong, minLat, maxLat);
+        mImageManager.load(zoom, minLong, maxLong, minLat, maxLat);
         
         // Show results
         startActivity(i);
@@ -22,15 +22,19 @@ import android.graphics.Bitmap;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.lang.ref.SoftReference;
+
 /**
  * Holds one item returned from the Panoramio server. This includes
- * the bitmap along with other meta info.
+ * the location of the thumbnail along with other meta info. The thumbnail
+ * itself is only loaded while the item is on screen, and is held through a
+ * soft reference so it never keeps the search results from being collected.
  *
  */
 public class PanoramioItem implements Parcelable {
     
     private long mId;
-    private Bitmap mBitmap;
+    private SoftReference<Bitmap> mBitmap;
     private GeoPoint mLocation;
     private String mTitle;
     private String mOwner;
@@ -40,7 +44,6 @@ public class PanoramioItem implements Parcelable {
     
     public PanoramioItem(Parcel in) {
         mId = in.readLong();
-        mBitmap = Bitmap.CREATOR.createFromParcel(in);
         mLocation = new GeoPoint(in.readInt(), in.readInt());
         mTitle = in.readString();
         mOwner = in.readString();
@@ -49,9 +52,9 @@ public class PanoramioItem implements Parcelable {
         mPhotoUrl = in.readString();
     }
     
-    public PanoramioItem(long id, String thumbUrl, Bitmap b, int latitudeE6, int longitudeE6,
+    public PanoramioItem(long id, String thumbUrl, int latitudeE6, int longitudeE6,
             String title, String owner, String ownerUrl, String photoUrl) {
-        mBitmap = b;
+        mId = id;
         mLocation = new GeoPoint(latitudeE6, longitudeE6);
         mTitle = title;
         mOwner = owner;
@@ -64,8 +67,20 @@ public class PanoramioItem implements Parcelable {
         return mId;
     }
     
+    /**
+     * @return The thumbnail, or null if it is not loaded or was released
+     */
     public Bitmap getBitmap() {
-        return mBitmap;
+        SoftReference<Bitmap> ref = mBitmap;
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * Sets the thumbnail once it has been loaded, or releases it when b is null.
+     * Must be called on the UI thread.
+     */
+    void setBitmap(Bitmap b) {
+        mBitmap = b != null ? new SoftReference<Bitmap>(b) : null;
     }
 
     public GeoPoint getLocation() {
@@ -109,7 +124,6 @@ public class PanoramioItem implements Parcelable {
 
     public void writeToParcel(Parcel parcel, int flags) {
         parcel.writeLong(mId);
-        mBitmap.writeToParcel(parcel, 0);
         parcel.writeInt(mLocation.getLatitudeE6());
         parcel.writeInt(mLocation.getLongitudeE6());
         parcel.writeString(mTitle);
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.panoramio;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+
+/**
+ * Streaming parser for the JSON search results returned by Panoramio. The parser
+ * reads the response one character at a time and returns each photo of the "photos"
+ * array as soon as its closing brace has been read. The whole document is never held
+ * in memory, only the fields of the photo being parsed.
+ *
+ * Only the top-level members and the members of each photo are interpreted. Nested
+ * objects and arrays are skipped.
+ */
+public class SearchResultsParser {
+
+    private static final String PHOTOS = "photos";
+
+    private final Reader mReader;
+
+    private final String mUntitled;
+
+    /**
+     * Holds a character read ahead of the current position, or -1
+     */
+    private int mPeek = -1;
+
+    /**
+     * True once the parser is positioned inside the "photos" array
+     */
+    private boolean mInPhotos;
+
+    /**
+     * True once the end of the "photos" array has been reached
+     */
+    private boolean mDone;
+
+    private final StringBuilder mBuilder = new StringBuilder();
+
+    private final HashMap<String, String> mFields = new HashMap<String, String>();
+
+    /**
+     * @param reader The response to parse. Should be buffered.
+     * @param untitled The title given to photos without a title
+     */
+    public SearchResultsParser(Reader reader, String untitled) {
+        mReader = reader;
+        mUntitled = untitled;
+    }
+
+    /**
+     * Parses the next photo of the search results.
+     *
+     * @return The next photo, or null if there are no
+     *         more photos
+     * @throws IOException If the response cannot be read or is malformed
+     */
+    public PanoramioItem next() throws IOException {
+        if (mDone) {
+            return null;
+        }
+        if (!mInPhotos) {
+            if (!findPhotos()) {
+                mDone = true;
+                return null;
+            }
+            mInPhotos = true;
+
+            int c = nextClean();
+            if (c == ']') {
+                mDone = true;
+                return null;
+            }
+            mPeek = c;
+        } else {
+            int c = nextClean();
+            if (c == ']') {
+                mDone = true;
+                return null;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'", c);
+            }
+        }
+
+        int c = nextClean();
+        if (c != '{') {
+            throw syntaxError("Expected a photo", c);
+        }
+        readFields(mFields);
+        return createItem(mFields);
+    }
+
+    /**
+     * Reads the top-level object until the value of its "photos" member.
+     *
+     * @return True if the parser is positioned at the start of the photos,
+     *         false if the response does not contain any photo
+     */
+    private boolean findPhotos() throws IOException {
+        int c = nextClean();
+        if (c != '{') {
+            throw syntaxError("Expected an object", c);
+        }
+        while (true) {
+            c = nextClean();
+            if (c == '}' || c == -1) {
+                return false;
+            }
+            if (c == ',') {
+                c = nextClean();
+            }
+            if (c != '"') {
+                throw syntaxError("Expected a name", c);
+            }
+            String name = readString();
+            c = nextClean();
+            if (c != ':') {
+                throw syntaxError("Expected ':'", c);
+            }
+            c = nextClean();
+            if (c == '[' && PHOTOS.equals(name)) {
+                return true;
+            }
+            skipValue(c);
+        }
+    }
+
+    /**
+     * Reads the members of an object whose opening brace was already read. Values
+     * of nested objects and arrays are skipped.
+     */
+    private void readFields(HashMap<String, String> fields) throws IOException {
+        fields.clear();
+        while (true) {
+            int c = nextClean();
+            if (c == '}') {
+                return;
+            }
+            if (c == ',') {
+                c = nextClean();
+            }
+            if (c != '"') {
+                throw syntaxError("Expected a name", c);
+            }
+            String name = readString();
+            c = nextClean();
+            if (c != ':') {
+                throw syntaxError("Expected ':'", c);
+            }
+            c = nextClean();
+            if (c == '{' || c == '[') {
+                skipValue(c);
+            } else if (c == '"') {
+                fields.put(name, readString());
+            } else {
+                fields.put(name, readLiteral(c));
+            }
+        }
+    }
+
+    private PanoramioItem createItem(HashMap<String, String> fields) throws IOException {
+        try {
+            long id = Long.parseLong(fields.get("photo_id"));
+            String title = fields.get("photo_title");
+            double latitude = Double.parseDouble(fields.get("latitude"));
+            double longitude = Double.parseDouble(fields.get("longitude"));
+            if (title == null) {
+                title = mUntitled;
+            }
+            return new PanoramioItem(id, fields.get("photo_file_url"),
+                    (int) (latitude * Panoramio.MILLION), (int) (longitude * Panoramio.MILLION),
+                    title, fields.get("owner_name"), fields.get("owner_url"),
+                    fields.get("photo_url"));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed photo: " + e.getMessage());
+        } catch (NullPointerException e) {
+            throw new IOException("Incomplete photo: " + fields);
+        }
+    }
+
+    /**
+     * Skips a value whose first character was already read.
+     */
+    private void skipValue(int c) throws IOException {
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = read();
+                if (c == -1) {
+                    throw syntaxError("Unterminated value", c);
+                } else if (c == '"') {
+                    readString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            }
+        } else {
+            readLiteral(c);
+        }
+    }
+
+    /**
+     * Reads a string whose opening quote was already read.
+     */
+    private String readString() throws IOException {
+        final StringBuilder builder = mBuilder;
+        builder.setLength(0);
+        while (true) {
+            int c = read();
+            switch (c) {
+            case -1:
+                throw syntaxError("Unterminated string", c);
+            case '"':
+                return builder.toString();
+            case '\\':
+                c = read();
+                switch (c) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (digit == -1) {
+                            throw syntaxError("Malformed escape", c);
+                        }
+                        value = (value << 4) | digit;
+                    }
+                    builder.append((char) value);
+                    break;
+                case -1:
+                    throw syntaxError("Unterminated string", c);
+                default:
+                    builder.append((char) c);
+                    break;
+                }
+                break;
+            default:
+                builder.append((char) c);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads a number, true, false or null whose first character was already read.
+     *
+     * @return The literal as a string, or null for the null literal
+     */
+    private String readLiteral(int c) throws IOException {
+        final StringBuilder builder = mBuilder;
+        builder.setLength(0);
+        while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            builder.append((char) c);
+            c = read();
+        }
+        mPeek = c;
+        if (builder.length() == 0) {
+            throw syntaxError("Expected a value", c);
+        }
+        String literal = builder.toString();
+        return "null".equals(literal) ? null : literal;
+    }
+
+    /**
+     * @return The next character that is not whitespace, or -1 at the end of the
+     *         response
+     */
+    private int nextClean() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (mPeek != -1) {
+            int c = mPeek;
+            mPeek = -1;
+            return c;
+        }
+        return mReader.read();
+    }
+
+    private static IOException syntaxError(String message, int c) {
+        return new IOException(message + (c == -1 ? " at end of input" : " at '" +
+                (char) c + "'"));
+    }
+}
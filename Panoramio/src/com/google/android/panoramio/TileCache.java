@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.panoramio;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the search results of areas that have already been searched. The world
+ * is divided into a grid of square tiles for each zoom level, and the results are
+ * cached per tile. A search area is covered by a few tiles, so moving the map a
+ * little or coming back to a previous area only requires the missing tiles to be
+ * downloaded.
+ *
+ * The cache keeps at most {@link #MAX_TILES} tiles and evicts the least recently
+ * used tile first. This class is not thread safe and must only be used from the
+ * UI thread.
+ */
+public class TileCache {
+
+    /**
+     * Maximum number of tiles kept in the cache. The cached items only hold their
+     * thumbnails through soft references, which the VM clears when memory runs low,
+     * so a tile costs the metadata of at most a hundred items. This keeps about
+     * eight screens of four tiles.
+     */
+    private static final int MAX_TILES = 32;
+
+    /**
+     * Tiles are one zoom level larger than the map tiles, so that a screen is
+     * usually covered by four tiles or less.
+     */
+    private static final int TILE_ZOOM_OFFSET = 1;
+
+    private final LinkedHashMap<String, ArrayList<PanoramioItem>> mTiles =
+            new LinkedHashMap<String, ArrayList<PanoramioItem>>(MAX_TILES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArrayList<PanoramioItem>> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+
+    /**
+     * Returns the tiles covering the specified search area. The area can cross the
+     * 180th meridian, either with longitudes beyond -180 or 180 degrees, or with a
+     * minimum longitude larger than the maximum longitude.
+     *
+     * @param zoom The zoom level of the map
+     * @param minLong The minimum longitude for the search area
+     * @param maxLong The maximum longitude for the search area
+     * @param minLat The minimum latitude for the search area
+     * @param maxLat The maximum latitude for the search area
+     * @return The tiles covering the area, row by row
+     */
+    public static ArrayList<Tile> getTiles(int zoom, float minLong, float maxLong,
+            float minLat, float maxLat) {
+        int tileZoom = Math.max(0, zoom - TILE_ZOOM_OFFSET);
+        float span = Tile.getSpan(tileZoom);
+        int columns = 1 << tileZoom;
+        int rows = Math.max(1, columns / 2);
+
+        if (maxLong < minLong) {
+            maxLong += 360f;
+        }
+        int minX = (int) Math.floor((minLong + 180f) / span);
+        int maxX = (int) Math.floor((maxLong + 180f) / span);
+        if (maxX - minX >= columns) {
+            // The area goes around the world
+            minX = 0;
+            maxX = columns - 1;
+        }
+        int minY = Math.max(0, (int) Math.floor((minLat + 90f) / span));
+        int maxY = Math.min(rows - 1, (int) Math.floor((maxLat + 90f) / span));
+
+        ArrayList<Tile> tiles = new ArrayList<Tile>((maxX - minX + 1) * (maxY - minY + 1));
+        for (int y = maxY; y >= minY; y--) {
+            for (int x = minX; x <= maxX; x++) {
+                // Columns past the 180th meridian are the ones on the other side
+                tiles.add(new Tile(tileZoom, (x % columns + columns) % columns, y));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @return The cached search results of the specified tile, or null if the
+     *         tile is not cached
+     */
+    public ArrayList<PanoramioItem> get(Tile tile) {
+        return mTiles.get(tile.getKey());
+    }
+
+    /**
+     * Caches the complete search results of the specified tile.
+     */
+    public void put(Tile tile, ArrayList<PanoramioItem> items) {
+        mTiles.put(tile.getKey(), items);
+    }
+
+    /**
+     * A square area of the world at a given zoom level.
+     */
+    public static class Tile {
+        private final int mZoom;
+        private final int mX;
+        private final int mY;
+
+        public Tile(int zoom, int x, int y) {
+            mZoom = zoom;
+            mX = x;
+            mY = y;
+        }
+
+        /**
+         * @return The width and height, in degrees, of the tiles at the specified zoom
+         */
+        static float getSpan(int zoom) {
+            return 360f / (1 << zoom);
+        }
+
+        public String getKey() {
+            return mZoom + "/" + mX + "/" + mY;
+        }
+
+        public float getMinLong() {
+            return mX * getSpan(mZoom) - 180f;
+        }
+
+        public float getMaxLong() {
+            return (mX + 1) * getSpan(mZoom) - 180f;
+        }
+
+        public float getMinLat() {
+            return Math.max(-90f, mY * getSpan(mZoom) - 90f);
+        }
+
+        public float getMaxLat() {
+            return Math.min(90f, (mY + 1) * getSpan(mZoom) - 90f);
+        }
+    }
+}
@@ -89,12 +89,35 @@ public class ViewImage extends Activity {
         mTitle = (TextView) findViewById(R.id.title);
         mOwner = (TextView) findViewById(R.id.owner);
         
+        // Photos viewed recently are still in memory and are displayed immediately
+        Bitmap b = ImageCache.getInstance(this).getCachedBitmap(getMediumUrl());
+        if (b != null) {
+            showImage(b);
+            return;
+        }
+
         mContent.setVisibility(View.GONE);
         getWindow().setFeatureInt(Window.FEATURE_INDETERMINATE_PROGRESS,
                 Window.PROGRESS_VISIBILITY_ON);
         new LoadThread().start();
     }
 
+    /**
+     * @return The location of the medium version of the photo
+     */
+    private String getMediumUrl() {
+        return mItem.getThumbUrl().replace("thumbnail", "medium");
+    }
+
+    private void showImage(Bitmap b) {
+        mImage.setImageBitmap(b);
+        mTitle.setText(mItem.getTitle());
+        mOwner.setText(mItem.getOwner());
+        mContent.setVisibility(View.VISIBLE);
+        getWindow().setFeatureInt(Window.FEATURE_INDETERMINATE_PROGRESS,
+                Window.PROGRESS_VISIBILITY_OFF);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
@@ -175,7 +198,8 @@ public class ViewImage extends Activity {
 
 
     /**
-     * Utility to load a larger version of the image in a separate thread.
+     * Utility to load a larger version of the image in a separate thread. The image
+     * is read from the {@link ImageCache} if it was viewed before.
      *
      */
     private class LoadThread extends Thread {
@@ -186,18 +210,11 @@ public class ViewImage extends Activity {
         @Override
         public void run() {
             try {
-                String uri = mItem.getThumbUrl();
-                uri = uri.replace("thumbnail", "medium");
-                final Bitmap b = BitmapUtils.loadBitmap(uri);
+                final Bitmap b = ImageCache.getInstance(ViewImage.this).loadBitmap(
+                        getMediumUrl());
                 mHandler.post(new Runnable() {
                     public void run() {
-
-                        mImage.setImageBitmap(b);
-                        mTitle.setText(mItem.getTitle());
-                        mOwner.setText(mItem.getOwner());
-                        mContent.setVisibility(View.VISIBLE);
-                        getWindow().setFeatureInt(Window.FEATURE_INDETERMINATE_PROGRESS,
-                                Window.PROGRESS_VISIBILITY_OFF);
+                        showImage(b);
                     }
                 });
             } catch (Exception e) {
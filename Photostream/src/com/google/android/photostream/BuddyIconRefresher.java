@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the buddy icons of the contacts stored in the {@link UserDatabase} and
+ * replaces the icons that changed. Icons refreshed less than {@link #REFRESH_INTERVAL}
+ * ago are skipped. The icons are downloaded concurrently, on the executor and at the
+ * rate given by the caller. Icons are compared using the hash stored along with them,
+ * unchanged icons are therefore never written again. All the changes are written in
+ * a single transaction once every icon has been downloaded.
+ *
+ * This class performs network and database I/O and must not be used from the UI thread.
+ */
+final class BuddyIconRefresher {
+    // Minimum delay between two refreshes of the same icon: 7 days
+    private static final long REFRESH_INTERVAL = 7 * 24 * 60 * 60 * 1000L;
+
+    private final SQLiteDatabase mDatabase;
+    private final ExecutorService mExecutor;
+    private final CheckUpdateService.RateLimiter mLimiter;
+
+    /**
+     * Creates a new refresher for the specified database.
+     *
+     * @param database The writable database of the shared {@link UserDatabase}.
+     * @param executor The executor used to download the icons.
+     * @param limiter The rate limiter acquired before each download.
+     */
+    BuddyIconRefresher(SQLiteDatabase database, ExecutorService executor,
+            CheckUpdateService.RateLimiter limiter) {
+        mDatabase = database;
+        mExecutor = executor;
+        mLimiter = limiter;
+    }
+
+    /**
+     * Refreshes the buddy icons. The refresh stops, without writing anything, if the
+     * current thread is interrupted.
+     *
+     * @return The number of icons that were updated.
+     *
+     * @throws InterruptedException If the current thread is interrupted while waiting
+     *         for the downloads.
+     */
+    int refresh() throws InterruptedException {
+        final long now = System.currentTimeMillis();
+        final ArrayList<Icon> icons = loadIcons(now - REFRESH_INTERVAL);
+        if (icons.size() == 0) return 0;
+
+        final CompletionService<Icon> loader = new ExecutorCompletionService<Icon>(mExecutor);
+        final ArrayList<Future<Icon>> pending = new ArrayList<Future<Icon>>(icons.size());
+        final ArrayList<Icon> refreshed = new ArrayList<Icon>(icons.size());
+        int changed = 0;
+
+        try {
+            for (final Icon icon : icons) {
+                pending.add(loader.submit(new Callable<Icon>() {
+                    public Icon call() throws Exception {
+                        mLimiter.acquire();
+                        return icon.load() ? icon : null;
+                    }
+                }));
+            }
+
+            final int count = pending.size();
+            for (int i = 0; i < count; i++) {
+                final Icon icon;
+                try {
+                    icon = loader.take().get();
+                } catch (ExecutionException e) {
+                    android.util.Log.e(Flickr.LOG_TAG, "Could not refresh buddy icon",
+                            e.getCause());
+                    continue;
+                }
+
+                if (icon == null) continue;
+                refreshed.add(icon);
+                if (icon.mData != null) changed++;
+            }
+        } finally {
+            for (Future<Icon> future : pending) {
+                future.cancel(true);
+            }
+        }
+
+        if (refreshed.size() == 0 || Thread.currentThread().isInterrupted()) return 0;
+
+        final SQLiteDatabase database = mDatabase;
+        final ContentValues values = new ContentValues();
+        final String[] selection = new String[1];
+
+        database.beginTransaction();
+        try {
+            for (Icon icon : refreshed) {
+                values.clear();
+                if (icon.mData != null) {
+                    values.put(UserDatabase.COLUMN_BUDDY_ICON, icon.mData);
+                    values.put(UserDatabase.COLUMN_BUDDY_ICON_HASH, icon.mHash);
+                }
+                values.put(UserDatabase.COLUMN_BUDDY_ICON_REFRESH, now);
+                selection[0] = String.valueOf(icon.mId);
+                database.update(UserDatabase.TABLE_USERS, values, UserDatabase._ID + "=?",
+                        selection);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        return changed;
+    }
+
+    private ArrayList<Icon> loadIcons(long refreshedBefore) {
+        final ArrayList<Icon> icons = new ArrayList<Icon>();
+
+        Cursor cursor = null;
+        try {
+            cursor = mDatabase.query(UserDatabase.TABLE_USERS,
+                    new String[] { UserDatabase._ID, UserDatabase.COLUMN_NSID,
+                    UserDatabase.COLUMN_BUDDY_ICON_HASH },
+                    UserDatabase.COLUMN_BUDDY_ICON_REFRESH + " IS NULL OR " +
+                    UserDatabase.COLUMN_BUDDY_ICON_REFRESH + "<?",
+                    new String[] { String.valueOf(refreshedBefore) }, null, null, null);
+
+            final int idIndex = cursor.getColumnIndexOrThrow(UserDatabase._ID);
+            final int nsidIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_NSID);
+            final int hashIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_BUDDY_ICON_HASH);
+
+            while (cursor.moveToNext()) {
+                icons.add(new Icon(cursor.getInt(idIndex), cursor.getString(nsidIndex),
+                        cursor.getString(hashIndex)));
+            }
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+
+        return icons;
+    }
+
+    private static class Icon {
+        final int mId;
+        final String mNsid;
+        String mHash;
+        byte[] mData;
+
+        Icon(int id, String nsid, String hash) {
+            mId = id;
+            mNsid = nsid;
+            mHash = hash;
+        }
+
+        /**
+         * Downloads the icon. This method is invoked from the executor's threads.
+         *
+         * @return True if the icon was downloaded. {@link #mData} is only set if the
+         *         icon changed.
+         */
+        boolean load() {
+            final Flickr.UserInfo info = Flickr.get().getUserInfo(Flickr.User.fromId(mNsid));
+            if (info == null) return false;
+
+            final byte[] data = info.loadBuddyIconData();
+            if (data == null) return false;
+
+            final String hash = UserDatabase.hash(data);
+            if (!hash.equals(mHash)) {
+                mData = data;
+                mHash = hash;
+            }
+            return true;
+        }
+    }
+}
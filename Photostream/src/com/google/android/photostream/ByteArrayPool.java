@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * A pool of byte arrays used to download photos without allocating a new buffer
+ * for each photo. Buffers must be returned to the pool with {@link #release(byte[])}
+ * once they are not used anymore.
+ *
+ * This class is thread safe.
+ */
+final class ByteArrayPool {
+    private final int mMaxBuffers;
+    private final int mDefaultSize;
+    private final ArrayList<byte[]> mBuffers;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxBuffers The maximum number of buffers kept by the pool.
+     * @param defaultSize The minimum size of the buffers allocated by the pool.
+     */
+    ByteArrayPool(int maxBuffers, int defaultSize) {
+        mMaxBuffers = maxBuffers;
+        mDefaultSize = defaultSize;
+        mBuffers = new ArrayList<byte[]>(maxBuffers);
+    }
+
+    /**
+     * Returns a buffer whose length is at least the specified size. The returned
+     * buffer is either taken from the pool or newly allocated.
+     *
+     * @param minSize The minimum length of the buffer.
+     *
+     * @return A buffer whose content is undefined.
+     */
+    synchronized byte[] acquire(int minSize) {
+        final ArrayList<byte[]> buffers = mBuffers;
+        final int count = buffers.size();
+
+        int best = -1;
+        for (int i = 0; i < count; i++) {
+            final int length = buffers.get(i).length;
+            if (length >= minSize && (best == -1 || length < buffers.get(best).length)) {
+                best = i;
+            }
+        }
+
+        if (best != -1) return buffers.remove(best);
+        return new byte[Math.max(minSize, mDefaultSize)];
+    }
+
+    /**
+     * Returns the specified buffer to the pool. When the pool is full, the smallest
+     * buffer is discarded.
+     *
+     * @param buffer The buffer to return to the pool, can be null.
+     */
+    synchronized void release(byte[] buffer) {
+        if (buffer == null) return;
+
+        final ArrayList<byte[]> buffers = mBuffers;
+        if (buffers.size() < mMaxBuffers) {
+            buffers.add(buffer);
+            return;
+        }
+
+        int smallest = 0;
+        for (int i = 1; i < buffers.size(); i++) {
+            if (buffers.get(i).length < buffers.get(smallest).length) smallest = i;
+        }
+        if (buffers.get(smallest).length < buffer.length) {
+            buffers.set(smallest, buffer);
+        }
+    }
+
+    /**
+     * Reads the specified stream until its end into a buffer acquired from this pool.
+     * The buffer grows as needed, buffers outgrown during the read are returned to
+     * the pool.
+     *
+     * @param in The stream to read.
+     * @param expectedSize The expected number of bytes, or -1 if unknown.
+     * @param length Receives, at index 0, the number of bytes read.
+     *
+     * @return A buffer from this pool containing the data, which must be released
+     *         by the caller.
+     *
+     * @throws IOException If the stream cannot be read.
+     */
+    byte[] readFully(InputStream in, int expectedSize, int[] length) throws IOException {
+        // One extra byte lets us reach the end of the stream without growing the buffer
+        byte[] buffer = acquire(expectedSize > 0 ? expectedSize + 1 : mDefaultSize);
+        int offset = 0;
+
+        try {
+            int read;
+            while ((read = in.read(buffer, offset, buffer.length - offset)) != -1) {
+                offset += read;
+                if (offset == buffer.length) {
+                    final byte[] larger = acquire(buffer.length * 2);
+                    System.arraycopy(buffer, 0, larger, 0, offset);
+                    release(buffer);
+                    buffer = larger;
+                }
+            }
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        }
+
+        length[0] = offset;
+        return buffer;
+    }
+}
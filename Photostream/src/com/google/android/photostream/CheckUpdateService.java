@@ -32,14 +32,28 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * CheckUpdateService checks every 24 hours if updates have been made to the photostreams
  * of the current contacts. This service simply polls an RSS feed and compares the
- * modification timestamp with the one stored in the database.
+ * modification timestamp with the one stored in the database. The feeds of several
+ * contacts are polled concurrently, at a limited rate. Feeds are polled with conditional
+ * requests and are only downloaded when they changed since the last check. The buddy
+ * icons of the contacts are refreshed after each check, on the same threads and at the
+ * same rate.
  */
 public class CheckUpdateService extends Service {
     private static boolean DEBUG = false;
@@ -47,12 +61,27 @@ public class CheckUpdateService extends Service {
     // Check interval: every 24 hours
     private static long UPDATES_CHECK_INTERVAL = 24 * 60 * 60 * 1000;
 
+    // Number of feeds checked concurrently
+    private static int CHECK_THREADS_COUNT = 4;
+    // Maximum number of feed requests started per second
+    private static int CHECK_RATE_LIMIT = 5;
+
+    private static final ThreadFactory sCheckThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "CheckUpdate #" + mCount.getAndIncrement());
+        }
+    };
+
     private CheckForUpdatesTask mTask;
 
     @Override
     public void onStart(Intent intent, int startId) {
         super.onStart(intent, startId);
-        (mTask = new CheckForUpdatesTask()).execute();
+        mTask = new CheckForUpdatesTask();
+        mTask.setPriority(UserTask.Priority.BACKGROUND);
+        mTask.execute();
     }
 
     @Override
@@ -100,50 +129,115 @@ public class CheckUpdateService extends Service {
         }
 
         public Void doInBackground(Void... params) {
-            final UserDatabase helper = new UserDatabase(CheckUpdateService.this);
-            final SQLiteDatabase database = helper.getWritableDatabase();
+            final long start = SystemClock.elapsedRealtime();
+
+            final SQLiteDatabase database =
+                    UserDatabase.get(CheckUpdateService.this).getWritableDatabase();
+
+            final ExecutorService executor = Executors.newFixedThreadPool(CHECK_THREADS_COUNT,
+                    sCheckThreadFactory);
+            final ArrayList<Future<Contact>> pending = new ArrayList<Future<Contact>>();
+
+            int count = 0;
+            try {
+                final ArrayList<Contact> contacts = loadContacts(database);
+                count = contacts.size();
+
+                final CompletionService<Contact> checker =
+                        new ExecutorCompletionService<Contact>(executor);
+                final RateLimiter limiter = new RateLimiter(CHECK_RATE_LIMIT);
+
+                for (final Contact contact : contacts) {
+                    pending.add(checker.submit(new Callable<Contact>() {
+                        public Contact call() throws Exception {
+                            limiter.acquire();
+                            contact.checkForUpdates();
+                            return contact;
+                        }
+                    }));
+                }
+
+                final ContentValues values = new ContentValues();
+                final String[] selection = new String[1];
+
+                for (int i = 0; i < count && !isCancelled(); i++) {
+                    final Contact contact;
+                    try {
+                        contact = checker.take().get();
+                    } catch (ExecutionException e) {
+                        android.util.Log.e(Flickr.LOG_TAG, "Could not check for updates",
+                                e.getCause());
+                        continue;
+                    }
+
+                    if (contact.mHasUpdates) {
+                        publishProgress(contact.mNsid, contact.mRealName, contact.mId);
+                    }
+
+                    values.put(UserDatabase.COLUMN_LAST_UPDATE, contact.mCheckTime);
+                    values.put(UserDatabase.COLUMN_FEED_ETAG, contact.mValidators.getETag());
+                    values.put(UserDatabase.COLUMN_FEED_LAST_MODIFIED,
+                            contact.mValidators.getLastModified());
+                    selection[0] = String.valueOf(contact.mId);
+                    database.update(UserDatabase.TABLE_USERS, values, UserDatabase._ID + "=?",
+                            selection);
+                }
+
+                if (!isCancelled()) {
+                    final int refreshed = new BuddyIconRefresher(database, executor,
+                            limiter).refresh();
+                    android.util.Log.i(Flickr.LOG_TAG, "Refreshed " + refreshed + " buddy icons");
+                }
+            } catch (InterruptedException e) {
+                // The task was cancelled
+            } finally {
+                for (Future<Contact> future : pending) {
+                    future.cancel(true);
+                }
+                executor.shutdown();
+            }
+
+            final Flickr flickr = Flickr.get();
+            android.util.Log.i(Flickr.LOG_TAG, "Checked " + count + " contacts for updates in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms, connections opened=" +
+                    flickr.getOpenedConnectionsCount() + " reused=" +
+                    flickr.getReusedConnectionsCount());
+
+            return null;
+        }
+
+        private ArrayList<Contact> loadContacts(SQLiteDatabase database) {
+            final ArrayList<Contact> contacts = new ArrayList<Contact>();
 
             Cursor cursor = null;
             try {
                 cursor = database.query(UserDatabase.TABLE_USERS,
                         new String[] { UserDatabase._ID, UserDatabase.COLUMN_NSID,
-                        UserDatabase.COLUMN_REALNAME, UserDatabase.COLUMN_LAST_UPDATE },
+                        UserDatabase.COLUMN_REALNAME, UserDatabase.COLUMN_LAST_UPDATE,
+                        UserDatabase.COLUMN_FEED_ETAG, UserDatabase.COLUMN_FEED_LAST_MODIFIED },
                         null, null, null, null, null);
 
                 int idIndex = cursor.getColumnIndexOrThrow(UserDatabase._ID);
                 int realNameIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_REALNAME);
                 int nsidIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_NSID);
                 int lastUpdateIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_LAST_UPDATE);
+                int eTagIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_FEED_ETAG);
+                int lastModifiedIndex =
+                        cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_FEED_LAST_MODIFIED);
 
-                final Flickr flickr = Flickr.get();
-
-                final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
-                final Calendar reference = Calendar.getInstance();
-
-                while (!isCancelled() && cursor.moveToNext()) {
-                    final String nsid = cursor.getString(nsidIndex);
-                    calendar.setTimeInMillis(cursor.getLong(lastUpdateIndex));
-
-                    reference.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH),
-                            calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY),
-                            calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND));
-
-                    if (flickr.hasUpdates(Flickr.User.fromId(nsid), reference)) {
-                        publishProgress(nsid, cursor.getString(realNameIndex),
-                                cursor.getInt(idIndex));
-                    }
+                while (cursor.moveToNext()) {
+                    final Contact contact = new Contact(cursor.getInt(idIndex),
+                            cursor.getString(nsidIndex), cursor.getString(realNameIndex),
+                            cursor.getLong(lastUpdateIndex));
+                    contact.mValidators = new Flickr.FeedValidators(cursor.getString(eTagIndex),
+                            cursor.getString(lastModifiedIndex));
+                    contacts.add(contact);
                 }
-
-                final ContentValues values = new ContentValues();
-                values.put(UserDatabase.COLUMN_LAST_UPDATE, System.currentTimeMillis());
-
-                database.update(UserDatabase.TABLE_USERS, values, null, null);
             } finally {
                 if (cursor != null) cursor.close();
-                database.close();
             }
 
-            return null;
+            return contacts;
         }
 
         @Override
@@ -180,4 +274,68 @@ public class CheckUpdateService extends Service {
             stopSelf();
         }
     }
+
+    /**
+     * A contact whose photostream must be checked for updates.
+     */
+    private static class Contact {
+        final int mId;
+        final String mNsid;
+        final String mRealName;
+        final long mLastUpdate;
+
+        Flickr.FeedValidators mValidators;
+        long mCheckTime;
+        boolean mHasUpdates;
+
+        Contact(int id, String nsid, String realName, long lastUpdate) {
+            mId = id;
+            mNsid = nsid;
+            mRealName = realName;
+            mLastUpdate = lastUpdate;
+        }
+
+        /**
+         * Checks the contact's feed for updates made after the last check. This method
+         * is invoked from the checker's worker threads.
+         */
+        void checkForUpdates() {
+            final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+            calendar.setTimeInMillis(mLastUpdate);
+
+            final Calendar reference = Calendar.getInstance();
+            reference.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH),
+                    calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY),
+                    calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND));
+
+            // Remember when the check started to not miss updates made during the check
+            mCheckTime = System.currentTimeMillis();
+            mHasUpdates = Flickr.get().hasUpdates(Flickr.User.fromId(mNsid), reference,
+                    mValidators);
+        }
+    }
+
+    /**
+     * Spaces out the calls to {@link #acquire()} so that at most the specified number
+     * of calls return every second.
+     */
+    static class RateLimiter {
+        private final long mInterval;
+        private long mNextTime;
+
+        RateLimiter(int permitsPerSecond) {
+            mInterval = 1000 / permitsPerSecond;
+        }
+
+        void acquire() throws InterruptedException {
+            final long delay;
+            synchronized (this) {
+                final long now = SystemClock.elapsedRealtime();
+                final long time = Math.max(now, mNextTime);
+                mNextTime = time + mInterval;
+                delay = time - now;
+            }
+            if (delay > 0) Thread.sleep(delay);
+        }
+    }
 }
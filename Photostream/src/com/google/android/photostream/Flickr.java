@@ -20,17 +20,26 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpVersion;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -42,12 +51,17 @@ import java.io.BufferedOutputStream;
 import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
-import java.net.URL;
 
 import android.util.Xml;
 import android.view.InflateException;
@@ -130,6 +144,11 @@ class Flickr {
     private static final String RESPONSE_TAG_FEED = "feed";
     private static final String RESPONSE_TAG_UPDATED = "updated";
 
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
     private static final String PHOTO_IMAGE_URL = "http://farm%s.static.flickr.com/%s/%s_%s%s.jpg";
     private static final String BUDDY_ICON_URL =
             "http://farm%s.static.flickr.com/%s/buddyicons/%s.jpg";
@@ -140,8 +159,58 @@ class Flickr {
 
     private static final boolean FLAG_DECODE_PHOTO_STREAM_WITH_SKIA = false;
 
+    // Connections are shared by the REST calls and the downloads from the static hosts,
+    // each route gets enough connections for the thumbnail loaders and the prefetcher
+    private static final int MAX_TOTAL_CONNECTIONS = 12;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+    private static final int CONNECTION_POOL_TIMEOUT = 20 * 1000;
+    private static final int IDLE_CONNECTION_TIMEOUT = 30;
+
+    private static final int POOLED_BUFFERS_COUNT = 4;
+    private static final int POOLED_BUFFER_SIZE = 32 * 1024;
+
+    private static final ByteArrayPool sBufferPool =
+            new ByteArrayPool(POOLED_BUFFERS_COUNT, POOLED_BUFFER_SIZE);
+
     private static final Flickr sInstance = new Flickr();
 
+    // Responses are parsed concurrently by several threads and neither SimpleDateFormat
+    // nor XmlPullParser are thread safe, each thread therefore uses its own instances
+    private static final ThreadLocal<SimpleDateFormat> sParseDateFormat =
+            new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        }
+    };
+
+    private static final ThreadLocal<SimpleDateFormat> sOutputDateFormat =
+            new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("MMMM d, yyyy");
+        }
+    };
+
+    private static final ThreadLocal<XmlPullParser> sParser = new ThreadLocal<XmlPullParser>() {
+        @Override
+        protected XmlPullParser initialValue() {
+            return Xml.newPullParser();
+        }
+    };
+
+    private final AtomicInteger mRequestsCount = new AtomicInteger();
+    private final AtomicInteger mOpenedConnectionsCount = new AtomicInteger();
+
+    private final ScheduledExecutorService mIdleConnectionsReaper =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "Flickr Connections Reaper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private HttpClient mClient;
 
     /**
@@ -425,40 +494,35 @@ class Flickr {
         }
 
         /**
-         * Loads the user's buddy icon as a Bitmap. The user's buddy icon is loaded
-         * from the URL returned by {@link #getBuddyIconUrl()}. The buddy icon is
-         * not cached locally.
+         * Loads the encoded data of the user's buddy icon. The buddy icon is loaded
+         * from the URL returned by {@link #getBuddyIconUrl()} and is not decoded.
          *
-         * @return A 48x48 bitmap if the icon was loaded successfully or null otherwise.
+         * @return The JPEG data of the icon, or null if the icon could not be loaded.
          */
-        Bitmap loadBuddyIcon() {
-            Bitmap bitmap = null;
+        byte[] loadBuddyIconData() {
+            HttpEntity entity = null;
             InputStream in = null;
-            OutputStream out = null;
+            BufferedOutputStream out = null;
 
             try {
-                in = new BufferedInputStream(new URL(getBuddyIconUrl()).openStream(),
-                        IO_BUFFER_SIZE);
+                entity = sInstance.download(getBuddyIconUrl());
+                in = new BufferedInputStream(entity.getContent(), IO_BUFFER_SIZE);
 
-                if (FLAG_DECODE_PHOTO_STREAM_WITH_SKIA) {
-                    bitmap = BitmapFactory.decodeStream(in);
-                } else {
-                    final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-                    out = new BufferedOutputStream(dataStream, IO_BUFFER_SIZE);
-                    copy(in, out);
-                    out.flush();
+                final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+                out = new BufferedOutputStream(dataStream, IO_BUFFER_SIZE);
+                copy(in, out);
+                out.flush();
 
-                    final byte[] data = dataStream.toByteArray();
-                    bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-                }
+                return dataStream.toByteArray();
             } catch (IOException e) {
                 android.util.Log.e(Flickr.LOG_TAG, "Could not load buddy icon: " + this, e);
             } finally {
                 closeStream(in);
                 closeStream(out);
+                consumeEntity(entity);
             }
 
-            return bitmap;
+            return null;
         }
 
         @Override
@@ -510,6 +574,20 @@ class Flickr {
         private Photo() {
         }
 
+        /**
+         * Creates a photo from values previously read with the getters of this class,
+         * for instance from a local store.
+         */
+        Photo(String id, String secret, String server, String farm, String title,
+                String date) {
+            mId = id;
+            mSecret = secret;
+            mServer = server;
+            mFarm = farm;
+            mTitle = title;
+            mDate = date;
+        }
+
         private Photo(Parcel in) {
             mId = in.readString();
             mSecret = in.readString();
@@ -519,6 +597,42 @@ class Flickr {
             mDate = in.readString();
         }
 
+        /**
+         * Returns the Flickr id of the photo.
+         *
+         * @return The id of the photo.
+         */
+        String getId() {
+            return mId;
+        }
+
+        /**
+         * Returns the secret of the photo. The secret is part of the URL of the photo.
+         *
+         * @return The secret of the photo.
+         */
+        String getSecret() {
+            return mSecret;
+        }
+
+        /**
+         * Returns the server hosting the photo. The server is part of the URL of the photo.
+         *
+         * @return The server of the photo.
+         */
+        String getServer() {
+            return mServer;
+        }
+
+        /**
+         * Returns the farm hosting the photo. The farm is part of the URL of the photo.
+         *
+         * @return The farm of the photo.
+         */
+        String getFarm() {
+            return mFarm;
+        }
+
         /**
          * Returns the title of the photo, if specified.
          *
@@ -563,35 +677,95 @@ class Flickr {
          *         if the photo could not be loaded.
          */
         Bitmap loadPhotoBitmap(PhotoSize size) {
+            return loadPhotoBitmap(size, 0, 0);
+        }
+
+        /**
+         * Loads a Bitmap representing the photo for the specified size, subsampled to
+         * be displayed in the specified dimensions. The photo is downloaded into a
+         * pooled buffer, its bounds are then decoded to pick the largest power of two
+         * subsampling factor that still produces a Bitmap at least as large as needed
+         * to fit the specified dimensions. The Bitmap is loaded from the URL returned by
+         * {@link #getUrl(com.google.android.photostream.Flickr.PhotoSize)}.
+         *
+         * @param size The size of the photo to load.
+         * @param maxWidth The width in which the photo will be displayed, or 0 to
+         *                 decode the photo at full resolution.
+         * @param maxHeight The height in which the photo will be displayed, or 0 to
+         *                  decode the photo at full resolution.
+         *
+         * @return A Bitmap whose longest size is at most the longest side of the
+         *         specified {@link com.google.android.photostream.Flickr.PhotoSize}, or null
+         *         if the photo could not be loaded.
+         */
+        Bitmap loadPhotoBitmap(PhotoSize size, int maxWidth, int maxHeight) {
             Bitmap bitmap = null;
+            HttpEntity entity = null;
             InputStream in = null;
-            BufferedOutputStream out = null;
+            byte[] data = null;
 
             try {
-                in = new BufferedInputStream(new URL(getUrl(size)).openStream(),
-                        IO_BUFFER_SIZE);
+                entity = sInstance.download(getUrl(size));
 
                 if (FLAG_DECODE_PHOTO_STREAM_WITH_SKIA) {
+                    in = new BufferedInputStream(entity.getContent(), IO_BUFFER_SIZE);
                     bitmap = BitmapFactory.decodeStream(in);
                 } else {
-                    final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-                    out = new BufferedOutputStream(dataStream, IO_BUFFER_SIZE);
-                    copy(in, out);
-                    out.flush();
+                    in = entity.getContent();
 
-                    final byte[] data = dataStream.toByteArray();
-                    bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+                    final int[] length = new int[1];
+                    data = sBufferPool.readFully(in, (int) entity.getContentLength(), length);
+                    bitmap = decodeSampledBitmap(data, length[0], maxWidth, maxHeight);
                 }
             } catch (IOException e) {
                 android.util.Log.e(Flickr.LOG_TAG, "Could not load photo: " + this, e);
             } finally {
                 closeStream(in);
-                closeStream(out);
+                consumeEntity(entity);
+                sBufferPool.release(data);
             }
 
             return bitmap;
         }
 
+        /**
+         * Loads the encoded data of the photo for the specified size. The data is loaded
+         * from the URL returned by
+         * {@link #getUrl(com.google.android.photostream.Flickr.PhotoSize)} and is not
+         * decoded.
+         *
+         * @param size The size of the photo to load.
+         *
+         * @return The JPEG data of the photo, or null if the photo could not be loaded.
+         *
+         * @see com.google.android.photostream.ImageCache
+         */
+        byte[] loadPhotoData(PhotoSize size) {
+            HttpEntity entity = null;
+            InputStream in = null;
+            BufferedOutputStream out = null;
+
+            try {
+                entity = sInstance.download(getUrl(size));
+                in = new BufferedInputStream(entity.getContent(), IO_BUFFER_SIZE);
+
+                final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+                out = new BufferedOutputStream(dataStream, IO_BUFFER_SIZE);
+                copy(in, out);
+                out.flush();
+
+                return dataStream.toByteArray();
+            } catch (IOException e) {
+                android.util.Log.e(Flickr.LOG_TAG, "Could not load photo: " + this, e);
+            } finally {
+                closeStream(in);
+                closeStream(out);
+                consumeEntity(entity);
+            }
+
+            return null;
+        }
+
         @Override
         public String toString() {
             return mTitle + ", " + mDate + " @" + mId;
@@ -628,11 +802,26 @@ class Flickr {
      * page count both depend on the number of photos per page.
      */
     static class PhotoList {
-        private ArrayList<Photo> mPhotos;
+        private ArrayList<Photo> mPhotos = new ArrayList<Photo>();
         private int mPage;
         private int mPageCount;
 
-        private void add(Photo photo) {
+        private PhotoList() {
+        }
+
+        /**
+         * Creates an empty list for the specified page, for instance to restore a page
+         * from a local store.
+         *
+         * @param page The index of the page.
+         * @param pageCount The total number of pages.
+         */
+        PhotoList(int page, int pageCount) {
+            mPage = page;
+            mPageCount = pageCount;
+        }
+
+        void add(Photo photo) {
             mPhotos.add(photo);
         }
 
@@ -694,10 +883,61 @@ class Flickr {
         final SchemeRegistry registry = new SchemeRegistry();
         registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
 
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+        ConnManagerParams.setTimeout(params, CONNECTION_POOL_TIMEOUT);
+
         final ThreadSafeClientConnManager manager =
-                new ThreadSafeClientConnManager(params, registry);
+                new ThreadSafeClientConnManager(params, registry) {
+            @Override
+            protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemes) {
+                // Every connection opened by the operator is a new TCP connection
+                return new DefaultClientConnectionOperator(schemes) {
+                    @Override
+                    public void openConnection(OperatedClientConnection connection,
+                            HttpHost target, InetAddress local, HttpContext context,
+                            HttpParams params) throws IOException {
+                        mOpenedConnectionsCount.incrementAndGet();
+                        super.openConnection(connection, target, local, context, params);
+                    }
+                };
+            }
+        };
+
+        final DefaultHttpClient client = new DefaultHttpClient(manager, params);
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context) {
+                mRequestsCount.incrementAndGet();
+            }
+        });
+        mClient = client;
+
+        mIdleConnectionsReaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                manager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+            }
+        }, IDLE_CONNECTION_TIMEOUT, IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+    }
 
-        mClient = new DefaultHttpClient(manager, params);
+    /**
+     * Returns the number of HTTP connections opened by this class since it was
+     * loaded. Each opened connection required a TCP handshake.
+     *
+     * @return The number of opened connections.
+     */
+    int getOpenedConnectionsCount() {
+        return mOpenedConnectionsCount.get();
+    }
+
+    /**
+     * Returns the number of HTTP requests which were sent on a pooled connection
+     * instead of a newly opened one.
+     *
+     * @return The number of reused connections.
+     */
+    int getReusedConnectionsCount() {
+        return Math.max(0, mRequestsCount.get() - mOpenedConnectionsCount.get());
     }
 
     /**
@@ -810,6 +1050,23 @@ class Flickr {
      *          com.google.android.photostream.Flickr.PhotoSize, java.io.OutputStream) 
      */
     PhotoList getPublicPhotos(User user, int perPage, int page) {
+        return getPublicPhotos(user, perPage, page, null);
+    }
+
+    /**
+     * Retrives a list of photos for the specified user, like
+     * {@link #getPublicPhotos(com.google.android.photostream.Flickr.User, int, int)}.
+     * Each photo is also sent to the specified callback as soon as it is parsed, before
+     * the rest of the response is read, to let the caller start loading the photo.
+     *
+     * @param user The user to retrieve photos from.
+     * @param perPage The maximum number of photos to retrieve.
+     * @param page The index (starting at 1) of the page in the photostream.
+     * @param callback The callback invoked for each parsed photo, can be null.
+     *
+     * @return A list of at most perPage photos.
+     */
+    PhotoList getPublicPhotos(User user, int perPage, int page, final PhotoCallback callback) {
         final Uri.Builder uri = buildGetMethod(API_PEOPLE_GET_PUBLIC_PHOTOS);
         uri.appendQueryParameter(PARAM_USERID, user.getId());
         uri.appendQueryParameter(PARAM_PER_PAGE, String.valueOf(perPage));
@@ -822,12 +1079,7 @@ class Flickr {
         try {
             executeRequest(get, new ResponseHandler() {
                 public void handleResponse(InputStream in) throws IOException {
-                    parseResponse(in, new ResponseParser() {
-                        public void parseResponse(XmlPullParser parser)
-                                throws XmlPullParserException, IOException {
-                            parsePhotos(parser, photos);
-                        }
-                    });
+                    parsePhotos(in, photos, callback);
                 }
             });
         } catch (IOException e) {
@@ -837,6 +1089,28 @@ class Flickr {
         return photos;
     }
 
+    /**
+     * Parses a list of photos, as returned by
+     * {@link #getPublicPhotos(com.google.android.photostream.Flickr.User, int, int,
+     * com.google.android.photostream.Flickr.PhotoCallback)}, from the specified input
+     * stream. This method does not perform any network request.
+     *
+     * @param in The input stream containing the response sent by Flickr.
+     * @param photos The list to add the parsed photos to.
+     * @param callback The callback invoked for each parsed photo, can be null.
+     *
+     * @throws IOException
+     */
+    void parsePhotos(InputStream in, final PhotoList photos, final PhotoCallback callback)
+            throws IOException {
+        parseResponse(in, new ResponseParser() {
+            public void parseResponse(XmlPullParser parser)
+                    throws XmlPullParserException, IOException {
+                parsePhotos(parser, photos, callback);
+            }
+        });
+    }
+
     /**
      * Retrieves the geographical location of the specified photo. If the photo
      * has no geodata associated with it, this method returns null.
@@ -878,12 +1152,19 @@ class Flickr {
      * Checks the specified user's feed to see if any updated occured after the
      * specified date.
      *
+     * The request is conditional when the specified validators contain the ETag or
+     * the Last-Modified date of a previous response. If the feed did not change since
+     * that response, Flickr does not send it again and this method returns false
+     * without parsing anything. Otherwise the validators are updated with the
+     * values sent along with the new feed.
+     *
      * @param user The user whose feed must be checked.
      * @param reference The date after which to check for updates.
+     * @param validators The validators of the last response for this feed, can be null.
      *
      * @return True if any update occured after the reference date, false otherwise.
      */
-    boolean hasUpdates(User user, final Calendar reference) {
+    boolean hasUpdates(User user, final Calendar reference, FeedValidators validators) {
         final Uri.Builder uri = new Uri.Builder();
         uri.path(API_FEED_URL);
         uri.appendQueryParameter(PARAM_FEED_ID, user.getId());
@@ -892,17 +1173,23 @@ class Flickr {
         final HttpGet get = new HttpGet(uri.build().toString());
         final boolean[] updated = new boolean[1];
 
+        final ResponseHandler handler = new ResponseHandler() {
+            public void handleResponse(InputStream in) throws IOException {
+                parseFeedResponse(in, new ResponseParser() {
+                    public void parseResponse(XmlPullParser parser)
+                            throws XmlPullParserException, IOException {
+                        updated[0] = parseUpdated(parser, reference);
+                    }
+                });
+            }
+        };
+
         try {
-            executeRequest(get, new ResponseHandler() {
-                public void handleResponse(InputStream in) throws IOException {
-                    parseFeedResponse(in, new ResponseParser() {
-                        public void parseResponse(XmlPullParser parser)
-                                throws XmlPullParserException, IOException {
-                            updated[0] = parseUpdated(parser, reference);
-                        }
-                    });
-                }
-            });
+            if (validators != null) {
+                executeConditionalRequest(get, validators, handler);
+            } else {
+                executeRequest(get, handler);
+            }
         } catch (IOException e) {
             android.util.Log.e(LOG_TAG, "Could not find feed for user: " + user);
         }
@@ -927,8 +1214,9 @@ class Flickr {
         HttpEntity entity = null;
         try {
             final HttpResponse response = mClient.execute(get);
+            // The entity is always consumed to give the connection back to the pool
+            entity = response.getEntity();
             if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                entity = response.getEntity();
                 entity.writeTo(out);
                 out.flush();
             }
@@ -955,7 +1243,7 @@ class Flickr {
             name = parser.getName();
             if (RESPONSE_TAG_UPDATED.equals(name)) {
                 if (parser.next() == XmlPullParser.TEXT) {
-                    final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                    final SimpleDateFormat format = sParseDateFormat.get();
                     try {
                         final String text = parser.getText().replace('T', ' ').replace('Z', ' ');
                         final Calendar calendar = new GregorianCalendar();
@@ -972,12 +1260,12 @@ class Flickr {
         return false;
     }    
 
-    private void parsePhotos(XmlPullParser parser, PhotoList photos)
+    private void parsePhotos(XmlPullParser parser, PhotoList photos, PhotoCallback callback)
             throws XmlPullParserException, IOException {
         int type;
         String name;
-        SimpleDateFormat parseFormat = null;
-        SimpleDateFormat outputFormat = null;
+        final SimpleDateFormat parseFormat = sParseDateFormat.get();
+        final SimpleDateFormat outputFormat = sOutputDateFormat.get();
 
         final int depth = parser.getDepth();
 
@@ -992,7 +1280,6 @@ class Flickr {
                 photos.mPage = Integer.parseInt(parser.getAttributeValue(null, RESPONSE_ATTR_PAGE));
                 photos.mPageCount = Integer.parseInt(parser.getAttributeValue(null,
                         RESPONSE_ATTR_PAGES));
-                photos.mPhotos = new ArrayList<Photo>();
             } else if (RESPONSE_TAG_PHOTO.equals(name)) {
                 final Photo photo = new Photo();
                 photo.mId = parser.getAttributeValue(null, RESPONSE_ATTR_ID);
@@ -1002,18 +1289,18 @@ class Flickr {
                 photo.mTitle = parser.getAttributeValue(null, RESPONSE_ATTR_TITLE);
                 photo.mDate = parser.getAttributeValue(null, RESPONSE_ATTR_DATE_TAKEN);
 
-                if (parseFormat == null) {
-                    parseFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                    outputFormat = new SimpleDateFormat("MMMM d, yyyy");
-                }
-
-                try {
-                    photo.mDate = outputFormat.format(parseFormat.parse(photo.mDate));
-                } catch (ParseException e) {
-                    android.util.Log.w(LOG_TAG, "Could not parse photo date", e);
+                if (photo.mDate != null) {
+                    try {
+                        photo.mDate = outputFormat.format(parseFormat.parse(photo.mDate));
+                    } catch (ParseException e) {
+                        android.util.Log.w(LOG_TAG, "Could not parse photo date", e);
+                    }
                 }
 
                 photos.add(photo);
+                if (callback != null) {
+                    callback.onPhoto(photo);
+                }
             }
         }
     }
@@ -1118,7 +1405,7 @@ class Flickr {
      * @throws IOException
      */
     private void parseResponse(InputStream in, ResponseParser responseParser) throws IOException {
-        final XmlPullParser parser = Xml.newPullParser();
+        final XmlPullParser parser = sParser.get();
         try {
             parser.setInput(new InputStreamReader(in));
 
@@ -1161,7 +1448,7 @@ class Flickr {
     private void parseFeedResponse(InputStream in, ResponseParser responseParser)
             throws IOException {
 
-        final XmlPullParser parser = Xml.newPullParser();
+        final XmlPullParser parser = sParser.get();
         try {
             parser.setInput(new InputStreamReader(in));
 
@@ -1204,8 +1491,8 @@ class Flickr {
         HttpHost host = new HttpHost(API_REST_HOST, 80, "http");
         try {
             final HttpResponse response = mClient.execute(host, get);
+            entity = response.getEntity();
             if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                entity = response.getEntity();
                 final InputStream in = entity.getContent();
                 handler.handleResponse(in);
             }
@@ -1216,6 +1503,90 @@ class Flickr {
         }
     }
 
+    /**
+     * Executes a conditional HTTP request on Flickr's web service. The request carries
+     * the If-None-Match and If-Modified-Since headers built from the specified
+     * validators. If the server answers that the resource was not modified, the
+     * handler is not invoked. Otherwise, when the response is ok, the validators are
+     * replaced with the ones sent by the server and the content is sent to the
+     * specified response handler.
+     *
+     * @param get The GET request to executed.
+     * @param validators The validators of the last known response.
+     * @param handler The handler which will parse the response.
+     *
+     * @return False if the server answered that the resource was not modified,
+     *         true otherwise.
+     *
+     * @throws IOException
+     */
+    private boolean executeConditionalRequest(HttpGet get, FeedValidators validators,
+            ResponseHandler handler) throws IOException {
+
+        if (validators.mETag != null) {
+            get.addHeader(HEADER_IF_NONE_MATCH, validators.mETag);
+        }
+        if (validators.mLastModified != null) {
+            get.addHeader(HEADER_IF_MODIFIED_SINCE, validators.mLastModified);
+        }
+
+        HttpEntity entity = null;
+        HttpHost host = new HttpHost(API_REST_HOST, 80, "http");
+        try {
+            final HttpResponse response = mClient.execute(host, get);
+            entity = response.getEntity();
+
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+                return false;
+            }
+
+            if (status == HttpStatus.SC_OK) {
+                validators.mETag = getHeaderValue(response, HEADER_ETAG);
+                validators.mLastModified = getHeaderValue(response, HEADER_LAST_MODIFIED);
+
+                final InputStream in = entity.getContent();
+                handler.handleResponse(in);
+            }
+        } finally {
+            if (entity != null) {
+                entity.consumeContent();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Executes an HTTP GET request for the specified URL. The request goes through the
+     * same connection pool as the calls to Flickr's web service, which lets successive
+     * downloads from a static host reuse a kept-alive connection. The returned entity
+     * must be consumed by the caller to give its connection back to the pool.
+     *
+     * @param url The URL of the resource to download.
+     *
+     * @return The entity of the response.
+     *
+     * @throws IOException If the request failed or if the response is not ok.
+     */
+    private HttpEntity download(String url) throws IOException {
+        final HttpResponse response = mClient.execute(new HttpGet(url));
+        final HttpEntity entity = response.getEntity();
+
+        final int status = response.getStatusLine().getStatusCode();
+        if (status != HttpStatus.SC_OK || entity == null) {
+            consumeEntity(entity);
+            throw new IOException("Could not download " + url + ": " + status);
+        }
+
+        return entity;
+    }
+
+    private static String getHeaderValue(HttpResponse response, String name) {
+        final Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
     /**
      * Builds an HTTP GET request for the specified Flickr API method. The returned request
      * contains the web service path, the query parameter for the API KEY and the query
@@ -1233,6 +1604,45 @@ class Flickr {
         return builder;
     }
 
+    /**
+     * Decodes the specified encoded image, subsampled by the largest power of two
+     * that still produces a Bitmap large enough to fill the specified dimensions.
+     *
+     * @param data The buffer containing the encoded image.
+     * @param length The number of bytes of the encoded image.
+     * @param maxWidth The width in which the image will be displayed, or 0.
+     * @param maxHeight The height in which the image will be displayed, or 0.
+     *
+     * @return The decoded Bitmap, or null if the image could not be decoded.
+     */
+    static Bitmap decodeSampledBitmap(byte[] data, int length, int maxWidth, int maxHeight) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+
+        if (maxWidth > 0 && maxHeight > 0) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+            options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+                    maxWidth, maxHeight);
+            options.inJustDecodeBounds = false;
+        }
+
+        return BitmapFactory.decodeByteArray(data, 0, length, options);
+    }
+
+    /**
+     * Computes the largest power of two by which an image can be subsampled while
+     * still being scaled down, not up, to fit the specified dimensions.
+     */
+    private static int computeSampleSize(int width, int height, int maxWidth, int maxHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= maxWidth || height / (sampleSize * 2) >= maxHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     /**
      * Copy the content of the input stream into the output stream, using a temporary
      * byte array buffer whose size is defined by {@link #IO_BUFFER_SIZE}.
@@ -1250,6 +1660,22 @@ class Flickr {
         }
     }
 
+    /**
+     * Consumes the content of the specified entity, which releases the underlying
+     * connection.
+     *
+     * @param entity The entity to consume, can be null.
+     */
+    private static void consumeEntity(HttpEntity entity) {
+        if (entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                android.util.Log.e(Flickr.LOG_TAG, "Could not consume entity", e);
+            }
+        }
+    }
+
     /**
      * Closes the specified stream.
      *
@@ -1265,6 +1691,56 @@ class Flickr {
         }
     }
 
+    /**
+     * The HTTP validators, ETag and Last-Modified date, sent by Flickr along with
+     * a feed. The validators are used to issue conditional requests so that a feed
+     * is transferred and parsed only when it changed.
+     *
+     * @see Flickr#hasUpdates(com.google.android.photostream.Flickr.User, java.util.Calendar,
+     *      com.google.android.photostream.Flickr.FeedValidators)
+     */
+    static class FeedValidators {
+        private String mETag;
+        private String mLastModified;
+
+        FeedValidators(String eTag, String lastModified) {
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        /**
+         * Returns the value of the ETag header of the last response.
+         *
+         * @return The ETag, or null if none was sent.
+         */
+        String getETag() {
+            return mETag;
+        }
+
+        /**
+         * Returns the value of the Last-Modified header of the last response.
+         *
+         * @return The last modification date, or null if none was sent.
+         */
+        String getLastModified() {
+            return mLastModified;
+        }
+    }
+
+    /**
+     * Callback used with {@link Flickr#getPublicPhotos(com.google.android.photostream.Flickr.User,
+     * int, int, com.google.android.photostream.Flickr.PhotoCallback)}. The callback is invoked
+     * on the thread that parses the response, while the response is being parsed.
+     */
+    static interface PhotoCallback {
+        /**
+         * Invoked when a photo has been parsed.
+         *
+         * @param photo The parsed photo.
+         */
+        public void onPhoto(Photo photo);
+    }
+
     /**
      * Response handler used with
      * {@link Flickr#executeRequest(org.apache.http.client.methods.HttpGet,
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two-level cache for the photos downloaded from Flickr. The first level keeps decoded
+ * Bitmaps in memory and is bounded by the number of bytes used by the pixels. The second
+ * level keeps the encoded JPEG data, as sent by Flickr, in the application's cache
+ * directory. Both levels evict the least recently used entries first.
+ *
+ * Photos are identified by their id, their secret and the requested
+ * {@link com.google.android.photostream.Flickr.PhotoSize}.
+ *
+ * Bitmaps returned by this cache are shared and must never be recycled by the caller.
+ *
+ * This class is thread safe.
+ */
+final class ImageCache {
+    private static final String CACHE_DIRECTORY = "photos";
+
+    private static final int MEMORY_CACHE_SIZE = 2 * 1024 * 1024;
+    private static final long DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static ImageCache sInstance;
+
+    private final File mDirectory;
+
+    private final LinkedHashMap<String, Bitmap> mMemoryCache =
+            new LinkedHashMap<String, Bitmap>(32, 0.75f, true);
+    private int mMemorySize;
+    private long mDiskSize = -1;
+
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mMisses;
+    private int mMemoryEvictions;
+    private int mDiskEvictions;
+
+    private ImageCache(Context context) {
+        mDirectory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+    }
+
+    /**
+     * Returns the unique instance of this class. The cache is bound to the
+     * application's context and survives the activities that use it.
+     *
+     * @param context Any context of the application.
+     *
+     * @return The unique instance of this class.
+     */
+    static synchronized ImageCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the Bitmap for the specified photo and size. The memory cache is
+     * checked first, then the disk cache. If the photo cannot be found locally,
+     * it is downloaded from Flickr and stored in both levels of the cache.
+     *
+     * @param photo The photo to load.
+     * @param size The size of the photo to load.
+     *
+     * @return A shared Bitmap, or null if the photo could not be loaded.
+     */
+    Bitmap loadPhotoBitmap(Flickr.Photo photo, Flickr.PhotoSize size) {
+        return loadBitmap(photo, size, true);
+    }
+
+    /**
+     * Returns the Bitmap for the specified photo and size if it is present in
+     * the memory cache or in the disk cache. Unlike
+     * {@link #loadPhotoBitmap(com.google.android.photostream.Flickr.Photo,
+     * com.google.android.photostream.Flickr.PhotoSize)}, this method never downloads
+     * the photo, but it can read from the disk and must not be invoked from the
+     * UI thread.
+     *
+     * @param photo The photo to load.
+     * @param size The size of the photo to load.
+     *
+     * @return A shared Bitmap, or null if the photo is not cached.
+     */
+    Bitmap loadCachedBitmap(Flickr.Photo photo, Flickr.PhotoSize size) {
+        return loadBitmap(photo, size, false);
+    }
+
+    private Bitmap loadBitmap(Flickr.Photo photo, Flickr.PhotoSize size, boolean download) {
+        final String key = getKey(photo, size);
+
+        Bitmap bitmap = getFromMemory(key);
+        if (bitmap != null) return bitmap;
+
+        final File file = new File(mDirectory, key);
+        byte[] data = readFromDisk(file);
+        if (data != null) {
+            synchronized (this) {
+                mDiskHits++;
+            }
+        } else {
+            if (!download) return null;
+
+            data = photo.loadPhotoData(size);
+            if (data == null) return null;
+
+            synchronized (this) {
+                mMisses++;
+            }
+            writeToDisk(file, data);
+        }
+
+        bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bitmap != null) {
+            putInMemory(key, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Returns the Bitmap for the specified photo and size if it is present in
+     * the memory cache. This method never performs any I/O and can be safely
+     * invoked from the UI thread.
+     *
+     * @param photo The photo to look up.
+     * @param size The size of the photo to look up.
+     *
+     * @return A shared Bitmap, or null if the photo is not in memory.
+     */
+    Bitmap getCachedBitmap(Flickr.Photo photo, Flickr.PhotoSize size) {
+        return getFromMemory(getKey(photo, size));
+    }
+
+    /**
+     * Removes all the entries from the memory cache. The disk cache is left untouched.
+     */
+    synchronized void clearMemory() {
+        mMemoryCache.clear();
+        mMemorySize = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageCache[memory=" + mMemorySize + "/" + MEMORY_CACHE_SIZE +
+                ", disk=" + mDiskSize + "/" + DISK_CACHE_SIZE +
+                ", memoryHits=" + mMemoryHits + ", diskHits=" + mDiskHits +
+                ", misses=" + mMisses + ", memoryEvictions=" + mMemoryEvictions +
+                ", diskEvictions=" + mDiskEvictions + "]";
+    }
+
+    synchronized int getMemoryHitCount() {
+        return mMemoryHits;
+    }
+
+    synchronized int getDiskHitCount() {
+        return mDiskHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    synchronized int getMemoryEvictionCount() {
+        return mMemoryEvictions;
+    }
+
+    synchronized int getDiskEvictionCount() {
+        return mDiskEvictions;
+    }
+
+    private static String getKey(Flickr.Photo photo, Flickr.PhotoSize size) {
+        return photo.getId() + "_" + photo.getSecret() + "_" + size.name();
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private synchronized Bitmap getFromMemory(String key) {
+        final Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) mMemoryHits++;
+        return bitmap;
+    }
+
+    private synchronized void putInMemory(String key, Bitmap bitmap) {
+        final Bitmap previous = mMemoryCache.put(key, bitmap);
+        if (previous != null) mMemorySize -= sizeOf(previous);
+        mMemorySize += sizeOf(bitmap);
+
+        final Iterator<Map.Entry<String, Bitmap>> iterator = mMemoryCache.entrySet().iterator();
+        while (mMemorySize > MEMORY_CACHE_SIZE && iterator.hasNext()) {
+            final Map.Entry<String, Bitmap> entry = iterator.next();
+            // Never evict the entry we just added, even if it is larger than the cache
+            if (entry.getValue() == bitmap) continue;
+
+            mMemorySize -= sizeOf(entry.getValue());
+            iterator.remove();
+            mMemoryEvictions++;
+        }
+    }
+
+    private byte[] readFromDisk(File file) {
+        if (!file.exists()) return null;
+
+        final byte[] data = new byte[(int) file.length()];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int offset = 0;
+            int read;
+            while (offset < data.length &&
+                    (read = in.read(data, offset, data.length - offset)) != -1) {
+                offset += read;
+            }
+            if (offset != data.length) return null;
+
+            // The modification date is used to find the least recently used files
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            android.util.Log.w(Flickr.LOG_TAG, "Could not read cached photo: " + file, e);
+        } finally {
+            closeStream(in);
+        }
+
+        return null;
+    }
+
+    private void writeToDisk(File file, byte[] data) {
+        synchronized (this) {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                android.util.Log.w(Flickr.LOG_TAG, "Could not create cache directory: " +
+                        mDirectory);
+                return;
+            }
+            if (mDiskSize < 0) mDiskSize = computeDiskSize();
+        }
+
+        final File temp = new File(mDirectory, file.getName() + ".tmp");
+        OutputStream out = null;
+        boolean success = false;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(data);
+            success = true;
+        } catch (IOException e) {
+            android.util.Log.w(Flickr.LOG_TAG, "Could not cache photo: " + file, e);
+        } finally {
+            closeStream(out);
+        }
+
+        // Writing to a temporary file first guarantees that readers never see
+        // a partially written photo
+        if (!success || !temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            mDiskSize += data.length;
+            if (mDiskSize > DISK_CACHE_SIZE) trimDisk();
+        }
+    }
+
+    private long computeDiskSize() {
+        long size = 0;
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private void trimDisk() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        // Trim down to 3/4 of the maximum size to avoid trimming again on the next write
+        final long target = DISK_CACHE_SIZE * 3 / 4;
+        for (int i = 0; i < files.length && mDiskSize > target; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                mDiskSize -= length;
+                mDiskEvictions++;
+            }
+        }
+    }
+
+    private static void closeStream(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                android.util.Log.e(Flickr.LOG_TAG, "Could not close stream", e);
+            }
+        }
+    }
+}
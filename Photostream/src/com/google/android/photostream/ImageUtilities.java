@@ -19,13 +19,19 @@ package com.google.android.photostream;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 
+import java.util.ArrayList;
 import java.util.Random;
 
 /**
- * This class contains various utilities to manipulate Bitmaps. The methods of this class,
- * although static, are not thread safe and cannot be invoked by several threads at the
- * same time. Synchronization is required by the caller.
+ * This class contains various utilities to manipulate Bitmaps. The methods of this class
+ * are thread safe: each thread uses its own Paint and Canvas, and the destination Bitmaps
+ * are taken from a pool shared by all threads.
+ *
+ * Bitmaps returned by {@link #rotateAndFrame(android.graphics.Bitmap)} and
+ * {@link #scaleAndFrame(android.graphics.Bitmap, int, int)} should be given back with
+ * {@link #releaseBitmap(android.graphics.Bitmap)} once they are not displayed anymore.
  */
 final class ImageUtilities {
     private static final float PHOTO_BORDER_WIDTH = 3.0f;
@@ -33,15 +39,36 @@ final class ImageUtilities {
 
     private static final float ROTATION_ANGLE_MIN = 2.5f;
     private static final float ROTATION_ANGLE_EXTRA = 5.5f;
+    // Angles are rounded to this step so that rotated photos of the same size
+    // have a limited set of dimensions and can share pooled bitmaps
+    private static final float ROTATION_ANGLE_STEP = 0.5f;
+
+    private static final int POOL_MAX_SIZE = 2 * 1024 * 1024;
+
+    private static final BitmapPool sPool = new BitmapPool(POOL_MAX_SIZE);
 
-    private static final Random sRandom = new Random();
-    private static final Paint sPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
-    private static final Paint sStrokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private static final ThreadLocal<FrameState> sState = new ThreadLocal<FrameState>() {
+        @Override
+        protected FrameState initialValue() {
+            return new FrameState();
+        }
+    };
 
-    static {
-        sStrokePaint.setStrokeWidth(PHOTO_BORDER_WIDTH);
-        sStrokePaint.setStyle(Paint.Style.STROKE);
-        sStrokePaint.setColor(PHOTO_BORDER_COLOR);
+    /**
+     * Drawing state used by a single thread.
+     */
+    private static class FrameState {
+        final Random mRandom = new Random();
+        final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        final Paint mStrokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        final Canvas mCanvas = new Canvas();
+        final Rect mDestination = new Rect();
+
+        FrameState() {
+            mStrokePaint.setStrokeWidth(PHOTO_BORDER_WIDTH);
+            mStrokePaint.setStyle(Paint.Style.STROKE);
+            mStrokePaint.setColor(PHOTO_BORDER_COLOR);
+        }
     }
 
     /**
@@ -49,16 +76,17 @@ final class ImageUtilities {
      * and ranges, in degrees, from 2.5 to 8. After rotation a frame is overlaid on top
      * of the rotated image.
      *
-     * This method is not thread safe.
-     *
      * @param bitmap The Bitmap to rotate and apply a frame onto.
      *
      * @return A new Bitmap whose dimension are different from the original bitmap.
      */
     static Bitmap rotateAndFrame(Bitmap bitmap) {
-        final boolean positive = sRandom.nextFloat() >= 0.5f;
-        final float angle = (ROTATION_ANGLE_MIN + sRandom.nextFloat() * ROTATION_ANGLE_EXTRA) *
-                (positive ? 1.0f : -1.0f);
+        final FrameState state = sState.get();
+
+        final boolean positive = state.mRandom.nextFloat() >= 0.5f;
+        final float extra = Math.round(state.mRandom.nextFloat() * ROTATION_ANGLE_EXTRA /
+                ROTATION_ANGLE_STEP) * ROTATION_ANGLE_STEP;
+        final float angle = (ROTATION_ANGLE_MIN + extra) * (positive ? 1.0f : -1.0f);
         final double radAngle = Math.toRadians(angle);
 
         final int bitmapWidth = bitmap.getWidth();
@@ -76,12 +104,15 @@ final class ImageUtilities {
         final float x = (width - bitmapWidth) / 2.0f;
         final float y = (height - bitmapHeight) / 2.0f;
 
-        final Bitmap decored = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        final Canvas canvas = new Canvas(decored);
+        final Bitmap decored = sPool.acquire(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = state.mCanvas;
+        canvas.setBitmap(decored);
 
+        canvas.save();
         canvas.rotate(angle, width / 2.0f, height / 2.0f);
-        canvas.drawBitmap(bitmap, x, y, sPaint);
-        canvas.drawRect(x, y, x + bitmapWidth, y + bitmapHeight, sStrokePaint);
+        canvas.drawBitmap(bitmap, x, y, state.mPaint);
+        canvas.drawRect(x, y, x + bitmapWidth, y + bitmapHeight, state.mStrokePaint);
+        canvas.restore();
 
         return decored;
     }
@@ -90,8 +121,6 @@ final class ImageUtilities {
      * Scales the specified Bitmap to fit within the specified dimensions. After scaling,
      * a frame is overlaid on top of the scaled image.
      *
-     * This method is not thread safe.
-     *
      * @param bitmap The Bitmap to scale to fit the specified dimensions and to apply
      *               a frame onto.
      * @param width The maximum width of the new Bitmap.
@@ -101,6 +130,8 @@ final class ImageUtilities {
      *         equal to the specified width and height.
      */
     static Bitmap scaleAndFrame(Bitmap bitmap, int width, int height) {
+        final FrameState state = sState.get();
+
         final int bitmapWidth = bitmap.getWidth();
         final int bitmapHeight = bitmap.getHeight();
 
@@ -110,16 +141,99 @@ final class ImageUtilities {
         final int scaledWidth = (int) (bitmapWidth * scale);
         final int scaledHeight = (int) (bitmapHeight * scale);
 
-        final Bitmap decored = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
-        final Canvas canvas = new Canvas(decored);
+        final Bitmap.Config config = bitmap.getConfig() != null ?
+                bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        final Bitmap decored = sPool.acquire(scaledWidth, scaledHeight, config);
+        final Canvas canvas = state.mCanvas;
+        canvas.setBitmap(decored);
+
+        state.mDestination.set(0, 0, scaledWidth, scaledHeight);
+        canvas.drawBitmap(bitmap, null, state.mDestination, state.mPaint);
 
         final int offset = (int) (PHOTO_BORDER_WIDTH / 2);
-        sStrokePaint.setAntiAlias(false);
+        final Paint strokePaint = state.mStrokePaint;
+        strokePaint.setAntiAlias(false);
         canvas.drawRect(offset, offset, scaledWidth - offset - 1,
-                scaledHeight - offset - 1, sStrokePaint);
-        sStrokePaint.setAntiAlias(true);
+                scaledHeight - offset - 1, strokePaint);
+        strokePaint.setAntiAlias(true);
 
         return decored;
+    }
 
+    /**
+     * Gives back a Bitmap created by this class so that it can be reused. The Bitmap
+     * must not be used by the caller after this call.
+     *
+     * @param bitmap The Bitmap to release, can be null.
+     */
+    static void releaseBitmap(Bitmap bitmap) {
+        if (bitmap != null && !bitmap.isRecycled()) {
+            sPool.release(bitmap);
+        }
+    }
+
+    /**
+     * A pool of mutable Bitmaps indexed by their dimensions and configuration. The
+     * pool is bounded by the number of bytes used by the pixels of the pooled Bitmaps.
+     */
+    private static class BitmapPool {
+        private final int mMaxSize;
+        private final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+        private int mSize;
+
+        BitmapPool(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        Bitmap acquire(int width, int height, Bitmap.Config config) {
+            Bitmap bitmap = null;
+
+            synchronized (this) {
+                final ArrayList<Bitmap> bitmaps = mBitmaps;
+                for (int i = bitmaps.size() - 1; i >= 0; i--) {
+                    final Bitmap candidate = bitmaps.get(i);
+                    if (candidate.getWidth() == width && candidate.getHeight() == height &&
+                            candidate.getConfig() == config) {
+                        bitmaps.remove(i);
+                        mSize -= sizeOf(candidate);
+                        bitmap = candidate;
+                        break;
+                    }
+                }
+            }
+
+            if (bitmap == null) {
+                return Bitmap.createBitmap(width, height, config);
+            }
+
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+
+        void release(Bitmap bitmap) {
+            final int size = sizeOf(bitmap);
+
+            synchronized (this) {
+                final ArrayList<Bitmap> bitmaps = mBitmaps;
+                // Drop the oldest bitmaps to make room for the new one
+                while (mSize + size > mMaxSize && bitmaps.size() > 0) {
+                    final Bitmap oldest = bitmaps.remove(0);
+                    mSize -= sizeOf(oldest);
+                    oldest.recycle();
+                }
+
+                if (size <= mMaxSize) {
+                    bitmaps.add(bitmap);
+                    mSize += size;
+                    return;
+                }
+            }
+
+            bitmap.recycle();
+        }
+
+        private static int sizeOf(Bitmap bitmap) {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
     }
 }
@@ -83,7 +83,7 @@ public class LoginActivity extends Activity implements View.OnKeyListener,
             mCreateShortcut = true;
         }
 
-        mDatabase = new UserDatabase(this).getWritableDatabase();
+        mDatabase = UserDatabase.get(this).getWritableDatabase();
 
         setContentView(R.layout.screen_login);
         setupViews();
@@ -219,7 +219,6 @@ public class LoginActivity extends Activity implements View.OnKeyListener,
         }
 
         mAdapter.cleanup();
-        mDatabase.close();
     }
 
     private void onAddUser(String username) {
@@ -333,8 +332,7 @@ public class LoginActivity extends Activity implements View.OnKeyListener,
             values.put(UserDatabase.COLUMN_REALNAME, realname);
             values.put(UserDatabase.COLUMN_NSID, user.getId());
             values.put(UserDatabase.COLUMN_LAST_UPDATE, System.currentTimeMillis());
-            UserDatabase.writeBitmap(values, UserDatabase.COLUMN_BUDDY_ICON,
-                    info.loadBuddyIcon());
+            UserDatabase.writeIcon(values, info.loadBuddyIconData());
 
             long result = -1;
             if (!isCancelled()) {
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+/**
+ * Local store of the pages of photostreams loaded from Flickr. A stored page can be
+ * displayed immediately, without any network access, while a fresh copy is loaded
+ * from Flickr in the background and replaces it in the store.
+ *
+ * Pages are stored in the database managed by {@link UserDatabase} and are identified
+ * by the user's NSID, the number of photos per page and the index of the page. The
+ * store keeps at most {@link #MAX_PAGES_COUNT} pages, the pages synchronized the
+ * longest time ago are deleted first.
+ *
+ * This class performs database I/O and must not be used from the UI thread.
+ *
+ * This class is thread safe.
+ */
+final class PhotoListStore {
+    private static final int MAX_PAGES_COUNT = 60;
+
+    // Stored pages younger than this are not revalidated against Flickr
+    private static final long MAX_AGE = 60 * 1000;
+
+    private static final String PAGE_SELECTION = UserDatabase.COLUMN_NSID + "=? AND " +
+            UserDatabase.COLUMN_PER_PAGE + "=? AND " + UserDatabase.COLUMN_PAGE + "=?";
+
+    private static PhotoListStore sInstance;
+
+    private final UserDatabase mHelper;
+    private SQLiteDatabase mDatabase;
+
+    private PhotoListStore(Context context) {
+        mHelper = UserDatabase.get(context);
+    }
+
+    /**
+     * Returns the unique instance of this class. The store is bound to the
+     * application's context and survives the activities that use it.
+     *
+     * @param context Any context of the application.
+     *
+     * @return The unique instance of this class.
+     */
+    static synchronized PhotoListStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PhotoListStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Loads the specified page from the store.
+     *
+     * @param user The user whose photostream the page belongs to.
+     * @param perPage The number of photos per page.
+     * @param page The index (starting at 1) of the page.
+     *
+     * @return The stored page, or null if the page is not stored.
+     */
+    synchronized StoredPage load(Flickr.User user, int perPage, int page) {
+        final SQLiteDatabase database = open();
+        if (database == null) return null;
+
+        Cursor cursor = null;
+        try {
+            cursor = database.query(UserDatabase.TABLE_PHOTO_PAGES,
+                    new String[] { UserDatabase._ID, UserDatabase.COLUMN_PAGE_COUNT,
+                    UserDatabase.COLUMN_LAST_SYNC }, PAGE_SELECTION,
+                    selectionArgs(user, perPage, page), null, null, null);
+            if (!cursor.moveToFirst()) return null;
+
+            final long pageId = cursor.getLong(0);
+            final Flickr.PhotoList list = new Flickr.PhotoList(page, cursor.getInt(1));
+            final long lastSync = cursor.getLong(2);
+            cursor.close();
+
+            cursor = database.query(UserDatabase.TABLE_PHOTOS,
+                    new String[] { UserDatabase.COLUMN_PHOTO_ID, UserDatabase.COLUMN_SECRET,
+                    UserDatabase.COLUMN_SERVER, UserDatabase.COLUMN_FARM,
+                    UserDatabase.COLUMN_TITLE, UserDatabase.COLUMN_DATE },
+                    UserDatabase.COLUMN_PAGE_ID + "=?", new String[] { String.valueOf(pageId) },
+                    null, null, UserDatabase.COLUMN_POSITION + " ASC");
+
+            while (cursor.moveToNext()) {
+                list.add(new Flickr.Photo(cursor.getString(0), cursor.getString(1),
+                        cursor.getString(2), cursor.getString(3), cursor.getString(4),
+                        cursor.getString(5)));
+            }
+
+            return new StoredPage(list, lastSync);
+        } catch (SQLiteException e) {
+            android.util.Log.e(Flickr.LOG_TAG, "Could not load stored page " + page, e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+
+        return null;
+    }
+
+    /**
+     * Stores the specified page, replacing the previously stored copy if any.
+     * Empty lists are not stored since Flickr returns an empty list when a request
+     * fails.
+     *
+     * @param user The user whose photostream the page belongs to.
+     * @param perPage The number of photos per page.
+     * @param list The page to store.
+     */
+    synchronized void save(Flickr.User user, int perPage, Flickr.PhotoList list) {
+        if (list.getCount() == 0) return;
+
+        final SQLiteDatabase database = open();
+        if (database == null) return;
+
+        database.beginTransaction();
+        try {
+            final String[] args = selectionArgs(user, perPage, list.getPage());
+            deletePages(database, PAGE_SELECTION, args);
+
+            final ContentValues values = new ContentValues();
+            values.put(UserDatabase.COLUMN_NSID, user.getId());
+            values.put(UserDatabase.COLUMN_PER_PAGE, perPage);
+            values.put(UserDatabase.COLUMN_PAGE, list.getPage());
+            values.put(UserDatabase.COLUMN_PAGE_COUNT, list.getPageCount());
+            values.put(UserDatabase.COLUMN_LAST_SYNC, System.currentTimeMillis());
+            final long pageId = database.insert(UserDatabase.TABLE_PHOTO_PAGES,
+                    UserDatabase.COLUMN_LAST_SYNC, values);
+
+            final int count = list.getCount();
+            for (int i = 0; i < count; i++) {
+                final Flickr.Photo photo = list.get(i);
+                values.clear();
+                values.put(UserDatabase.COLUMN_PAGE_ID, pageId);
+                values.put(UserDatabase.COLUMN_POSITION, i);
+                values.put(UserDatabase.COLUMN_PHOTO_ID, photo.getId());
+                values.put(UserDatabase.COLUMN_SECRET, photo.getSecret());
+                values.put(UserDatabase.COLUMN_SERVER, photo.getServer());
+                values.put(UserDatabase.COLUMN_FARM, photo.getFarm());
+                values.put(UserDatabase.COLUMN_TITLE, photo.getTitle());
+                values.put(UserDatabase.COLUMN_DATE, photo.getDate());
+                database.insert(UserDatabase.TABLE_PHOTOS, UserDatabase.COLUMN_TITLE, values);
+            }
+
+            trim(database);
+
+            database.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            android.util.Log.e(Flickr.LOG_TAG, "Could not store page " + list.getPage(), e);
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Indicates whether two lists contain the same photos, in the same order, and
+     * belong to photostreams with the same number of pages.
+     *
+     * @param first The first list to compare.
+     * @param second The second list to compare.
+     *
+     * @return True if both lists would be displayed identically, false otherwise.
+     */
+    static boolean isSamePage(Flickr.PhotoList first, Flickr.PhotoList second) {
+        if (first.getPageCount() != second.getPageCount()) return false;
+
+        final int count = first.getCount();
+        if (count != second.getCount()) return false;
+
+        for (int i = 0; i < count; i++) {
+            final Flickr.Photo a = first.get(i);
+            final Flickr.Photo b = second.get(i);
+            if (!a.getId().equals(b.getId()) || !a.getSecret().equals(b.getSecret()) ||
+                    !equals(a.getTitle(), b.getTitle())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String[] selectionArgs(Flickr.User user, int perPage, int page) {
+        return new String[] { user.getId(), String.valueOf(perPage), String.valueOf(page) };
+    }
+
+    private void trim(SQLiteDatabase database) {
+        Cursor cursor = null;
+        try {
+            cursor = database.query(UserDatabase.TABLE_PHOTO_PAGES,
+                    new String[] { UserDatabase.COLUMN_LAST_SYNC }, null, null, null, null,
+                    UserDatabase.COLUMN_LAST_SYNC + " DESC", MAX_PAGES_COUNT + ",1");
+            if (!cursor.moveToFirst()) return;
+
+            deletePages(database, UserDatabase.COLUMN_LAST_SYNC + "<=?",
+                    new String[] { String.valueOf(cursor.getLong(0)) });
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private static void deletePages(SQLiteDatabase database, String selection, String[] args) {
+        database.delete(UserDatabase.TABLE_PHOTOS, UserDatabase.COLUMN_PAGE_ID +
+                " IN (SELECT " + UserDatabase._ID + " FROM " + UserDatabase.TABLE_PHOTO_PAGES +
+                " WHERE " + selection + ")", args);
+        database.delete(UserDatabase.TABLE_PHOTO_PAGES, selection, args);
+    }
+
+    private SQLiteDatabase open() {
+        if (mDatabase == null) {
+            try {
+                mDatabase = mHelper.getWritableDatabase();
+            } catch (SQLiteException e) {
+                android.util.Log.e(Flickr.LOG_TAG, "Could not open the photo store", e);
+            }
+        }
+        return mDatabase;
+    }
+
+    /**
+     * A page read from the store along with the time at which it was synchronized
+     * with Flickr.
+     */
+    static final class StoredPage {
+        final Flickr.PhotoList mList;
+        final long mLastSync;
+
+        StoredPage(Flickr.PhotoList list, long lastSync) {
+            mList = list;
+            mLastSync = lastSync;
+        }
+
+        /**
+         * Indicates whether the page should be loaded again from Flickr.
+         *
+         * @return True if the page was synchronized too long ago, false otherwise.
+         */
+        boolean isStale() {
+            return System.currentTimeMillis() - mLastSync > MAX_AGE;
+        }
+    }
+}
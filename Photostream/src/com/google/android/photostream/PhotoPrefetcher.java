@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Loads pages of a user's photostream before they are displayed. For each prefetched
+ * page, the list of photos is kept by the prefetcher and written to the
+ * {@link PhotoListStore}, and the thumbnails are loaded in the {@link ImageCache}, so
+ * that turning to that page does not require any network access.
+ *
+ * The prefetcher keeps at most {@link #MAX_PAGES_COUNT} pages. Prefetches run on
+ * the {@link UserTask} threads with the {@link UserTask.Priority#PREFETCH} priority,
+ * queued tasks started by the user therefore run first.
+ */
+final class PhotoPrefetcher {
+    private static final int MAX_PAGES_COUNT = 3;
+
+    private final ImageCache mCache;
+    private final PhotoListStore mStore;
+    private final Flickr.User mUser;
+    private final int mPerPage;
+
+    private final LinkedHashMap<Integer, Flickr.PhotoList> mPages =
+            new LinkedHashMap<Integer, Flickr.PhotoList>(MAX_PAGES_COUNT, 0.75f, true);
+    private final HashMap<Integer, Future<?>> mPending = new HashMap<Integer, Future<?>>();
+
+    /**
+     * Creates a new prefetcher for the specified user's photostream.
+     *
+     * @param context The application's environment.
+     * @param user The user whose photos to prefetch.
+     * @param perPage The number of photos per page.
+     */
+    PhotoPrefetcher(Context context, Flickr.User user, int perPage) {
+        mCache = ImageCache.get(context);
+        mStore = PhotoListStore.get(context);
+        mUser = user;
+        mPerPage = perPage;
+    }
+
+    /**
+     * Starts prefetching the specified page, unless it was already prefetched or
+     * is being prefetched.
+     *
+     * @param page The index (starting at 1) of the page to prefetch.
+     */
+    synchronized void prefetch(final int page) {
+        if (mPages.containsKey(page) || mPending.containsKey(page)) return;
+
+        mPending.put(page, UserTask.submit(UserTask.Priority.PREFETCH, new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                load(page);
+            }
+        }));
+    }
+
+    /**
+     * Returns the list of photos of the specified page if it was prefetched.
+     *
+     * @param page The index (starting at 1) of the page.
+     *
+     * @return The list of photos, or null if the page was not prefetched yet.
+     */
+    synchronized Flickr.PhotoList get(int page) {
+        return mPages.get(page);
+    }
+
+    /**
+     * Cancels all the pending prefetches. This method must be invoked when the
+     * photostream is not displayed anymore.
+     */
+    synchronized void cancel() {
+        for (Future<?> future : mPending.values()) {
+            future.cancel(true);
+        }
+        mPending.clear();
+    }
+
+    private void load(int page) {
+        try {
+            final Flickr.PhotoList list = Flickr.get().getPublicPhotos(mUser, mPerPage, page);
+            // Flickr returns an empty list when the request fails
+            if (list.getCount() == 0 || Thread.interrupted()) return;
+
+            mStore.save(mUser, mPerPage, list);
+
+            final int count = list.getCount();
+            for (int i = 0; i < count; i++) {
+                if (Thread.interrupted()) return;
+                mCache.loadPhotoBitmap(list.get(i), Flickr.PhotoSize.THUMBNAIL);
+            }
+
+            synchronized (this) {
+                mPages.put(page, list);
+
+                final Iterator<Map.Entry<Integer, Flickr.PhotoList>> iterator =
+                        mPages.entrySet().iterator();
+                while (mPages.size() > MAX_PAGES_COUNT && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mPending.remove(page);
+            }
+        }
+    }
+}
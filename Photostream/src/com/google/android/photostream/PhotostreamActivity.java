@@ -19,6 +19,7 @@ package com.google.android.photostream;
 import android.app.Activity;
 import android.app.NotificationManager;
 import android.os.Bundle;
+import android.os.Process;
 import android.content.Intent;
 import android.content.Context;
 import android.view.LayoutInflater;
@@ -34,8 +35,18 @@ import android.graphics.drawable.BitmapDrawable;
 import android.widget.ImageView;
 import android.widget.ViewAnimator;
 
+import java.util.ArrayList;
 import java.util.Random;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Activity used to display a Flickr user's photostream. This activity shows a fixed
@@ -57,6 +68,21 @@ public class PhotostreamActivity extends Activity implements
     private static final String STATE_PAGE_COUNT = "com.google.android.photostream.state_pagecount";
 
     private static final int PHOTOS_COUNT_PER_PAGE = 6;
+    private static final int LOADER_THREADS_COUNT = 3;
+
+    // When true, the previous page is prefetched along with the next one
+    private static final boolean FLAG_PREFETCH_PREVIOUS_PAGE = true;
+
+    private static final ThreadFactory sLoaderThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "PhotoLoader #" + mCount.getAndIncrement());
+        }
+    };
+
+    private static final ExecutorService sLoaderExecutor =
+            Executors.newFixedThreadPool(LOADER_THREADS_COUNT, sLoaderThreadFactory);
 
     private Flickr.User mUser;
     private int mCurrentPage = 1;
@@ -74,8 +100,11 @@ public class PhotostreamActivity extends Activity implements
     private LayoutAnimationController mBackAnimation;
 
     private UserTask<?, ?, ?> mTask;
+    private UserTask<?, ?, ?> mRevalidateTask;
     private String mUsername;
 
+    private PhotoPrefetcher mPrefetcher;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -207,6 +236,10 @@ public class PhotostreamActivity extends Activity implements
         if (mTask != null && mTask.getStatus() == UserTask.Status.RUNNING) {
             mTask.cancel(true);
         }
+        cancelRevalidation();
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
     }
 
     public void onClick(View v) {
@@ -251,7 +284,7 @@ public class PhotostreamActivity extends Activity implements
     private void loadPhotos() {
         final Object data = getLastNonConfigurationInstance();
         if (data == null) {
-            mTask = new GetPhotoListTask().execute(mCurrentPage);
+            mTask = new LoadPhotosTask().execute(mCurrentPage);
         } else {
             final LoadedPhoto[] photos = (LoadedPhoto[]) data;
             for (LoadedPhoto photo : photos) {
@@ -259,11 +292,50 @@ public class PhotostreamActivity extends Activity implements
             }
             prepareMenu(mPageCount);
             mSwitcher.showNext();
+            prefetchPhotos();
         }
     }
 
-    private void showPhotos(Flickr.PhotoList photos) {
-        mTask = new LoadPhotosTask().execute(photos);
+    /**
+     * Starts prefetching the pages around the current page, so that they can be
+     * displayed without waiting for the network.
+     */
+    private void prefetchPhotos() {
+        if (mUser == null) return;
+
+        if (mPrefetcher == null) {
+            mPrefetcher = new PhotoPrefetcher(this, mUser, PHOTOS_COUNT_PER_PAGE);
+        }
+
+        if (mCurrentPage < mPageCount) {
+            mPrefetcher.prefetch(mCurrentPage + 1);
+        }
+        if (FLAG_PREFETCH_PREVIOUS_PAGE && mCurrentPage > 1) {
+            mPrefetcher.prefetch(mCurrentPage - 1);
+        }
+    }
+
+    /**
+     * Loads the current page again from Flickr, in the background, because it was
+     * displayed from an outdated copy of the {@link PhotoListStore}. The page is
+     * displayed again only if its content changed.
+     *
+     * @param displayed The list of photos currently displayed.
+     */
+    private void revalidatePhotos(Flickr.PhotoList displayed) {
+        if (mUser == null) return;
+
+        cancelRevalidation();
+        final RevalidatePhotosTask task = new RevalidatePhotosTask(displayed);
+        task.setPriority(UserTask.Priority.PREFETCH);
+        mRevalidateTask = task.execute(mCurrentPage);
+    }
+
+    private void cancelRevalidation() {
+        if (mRevalidateTask != null && mRevalidateTask.getStatus() == UserTask.Status.RUNNING) {
+            mRevalidateTask.cancel(true);
+        }
+        mRevalidateTask = null;
     }
 
     private void onShowPhoto(Flickr.Photo photo) {
@@ -281,6 +353,7 @@ public class PhotostreamActivity extends Activity implements
     }
 
     private void animateAndLoadPhotos(LayoutAnimationController animation) {
+        cancelRevalidation();
         mSwitcher.showNext();
         mGrid.setLayoutAnimationListener(this);
         mGrid.setLayoutAnimation(animation);
@@ -290,10 +363,27 @@ public class PhotostreamActivity extends Activity implements
     public void onAnimationEnd(Animation animation) {
         mGrid.setLayoutAnimationListener(null);
         mGrid.setLayoutAnimation(null);
+        releasePhotos();
         mGrid.removeAllViews();
         loadPhotos();
     }
 
+    /**
+     * Gives the framed bitmaps displayed by the grid back to ImageUtilities so they
+     * can be reused for the next page.
+     */
+    private void releasePhotos() {
+        final GridLayout grid = mGrid;
+        final int count = grid.getChildCount();
+
+        for (int i = 0; i < count; i++) {
+            final ImageView v = (ImageView) grid.getChildAt(i);
+            final Bitmap bitmap = ((BitmapDrawable) v.getDrawable()).getBitmap();
+            v.setImageDrawable(null);
+            ImageUtilities.releaseBitmap(bitmap);
+        }
+    }
+
     public void onAnimationStart(Animation animation) {
     }
 
@@ -326,38 +416,152 @@ public class PhotostreamActivity extends Activity implements
     }    
 
     /**
-     * Background task used to load each individual photo. The task loads each photo
-     * in order and publishes each loaded Bitmap as a progress unit. The tasks ends
-     * by hiding the progress bar and showing the menu.
+     * Background task used to load the list of photos and each individual photo. The
+     * task first looks for the page in the prefetched pages, then in the
+     * {@link PhotoListStore}, and queries Flickr only when the page cannot be found
+     * locally. Each photo is handed to a small pool of worker threads as soon as it is
+     * known, which for a page queried from Flickr means as soon as it is parsed from
+     * the response. The workers load the thumbnail through the {@link ImageCache} and
+     * frame it. Each photo is published as a progress unit as soon as it is framed,
+     * photos are therefore added to the grid in the order in which they finish
+     * loading. When the task is cancelled, the photos that were framed but not
+     * published are released. The task ends by hiding the progress bar, showing the
+     * menu, prefetching the next page and, if the page came from a stale copy in the
+     * store, revalidating it with Flickr.
      */
-    private class LoadPhotosTask extends UserTask<Flickr.PhotoList, LoadedPhoto, Flickr.PhotoList> {
+    private class LoadPhotosTask extends UserTask<Integer, LoadedPhoto, Flickr.PhotoList> {
         private final Random mRandom;
+        private boolean mStale;
 
         private LoadPhotosTask() {
             mRandom = new Random();
         }
 
-        public Flickr.PhotoList doInBackground(Flickr.PhotoList... params) {
-            final Flickr.PhotoList list = params[0];
-            final int count = list.getCount();
+        public Flickr.PhotoList doInBackground(Integer... params) {
+            final ImageCache cache = ImageCache.get(PhotostreamActivity.this);
+            final PhotoListStore store = PhotoListStore.get(PhotostreamActivity.this);
+
+            final CompletionService<LoadedPhoto> loader =
+                    new ExecutorCompletionService<LoadedPhoto>(sLoaderExecutor);
+            final ArrayList<Future<LoadedPhoto>> pending =
+                    new ArrayList<Future<LoadedPhoto>>(PHOTOS_COUNT_PER_PAGE);
+
+            try {
+                if (mUsername != null) {
+                    mUser = Flickr.get().findByUserName(mUsername);
+                    mUsername = null;
+                }
+
+                final Flickr.PhotoCallback callback = new Flickr.PhotoCallback() {
+                    public void onPhoto(final Flickr.Photo photo) {
+                        if (isCancelled()) return;
+                        pending.add(loader.submit(new Callable<LoadedPhoto>() {
+                            public LoadedPhoto call() throws Exception {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                final LoadedPhoto loaded = frame(cache.loadPhotoBitmap(photo,
+                                        Flickr.PhotoSize.THUMBNAIL), photo);
+                                // Nobody will take the photo once the task is cancelled
+                                if (isCancelled()) {
+                                    ImageUtilities.releaseBitmap(loaded.mBitmap);
+                                    return null;
+                                }
+                                return loaded;
+                            }
+                        }));
+                    }
+                };
+
+                // Prefetched pages already have their thumbnails in the cache
+                Flickr.PhotoList list = mPrefetcher != null ? mPrefetcher.get(params[0]) : null;
+                if (list == null && mUser != null) {
+                    // Stored pages are displayed right away and revalidated afterwards
+                    final PhotoListStore.StoredPage stored = store.load(mUser,
+                            PHOTOS_COUNT_PER_PAGE, params[0]);
+                    if (stored != null) {
+                        list = stored.mList;
+                        mStale = stored.isStale();
+                    }
+                }
 
-            for (int i = 0; i < count; i++) {
-                if (isCancelled()) break;
+                if (list != null) {
+                    final int photosCount = list.getCount();
+                    for (int i = 0; i < photosCount; i++) {
+                        callback.onPhoto(list.get(i));
+                    }
+                } else {
+                    list = Flickr.get().getPublicPhotos(mUser, PHOTOS_COUNT_PER_PAGE, params[0],
+                            callback);
+                    if (mUser != null) store.save(mUser, PHOTOS_COUNT_PER_PAGE, list);
+                }
 
-                final Flickr.Photo photo = list.get(i);
-                Bitmap bitmap = photo.loadPhotoBitmap(Flickr.PhotoSize.THUMBNAIL);
-                if (!isCancelled()) {
-                    if (bitmap == null) {
-                        final boolean portrait = mRandom.nextFloat() >= 0.5f;
-                        bitmap = BitmapFactory.decodeResource(getResources(), portrait ?
-                            R.drawable.not_found_small_1 : R.drawable.not_found_small_2);
+                final int count = pending.size();
+                for (int i = 0; i < count; i++) {
+                    if (isCancelled()) break;
+
+                    final LoadedPhoto loaded;
+                    try {
+                        final Future<LoadedPhoto> future = loader.take();
+                        pending.remove(future);
+                        loaded = future.get();
+                    } catch (ExecutionException e) {
+                        android.util.Log.e(Flickr.LOG_TAG, "Could not load photo", e.getCause());
+                        continue;
                     }
-                    publishProgress(new LoadedPhoto(ImageUtilities.rotateAndFrame(bitmap), photo));
-                    bitmap.recycle();
+
+                    if (loaded == null) continue;
+
+                    if (!isCancelled()) {
+                        publishProgress(loaded);
+                    } else {
+                        ImageUtilities.releaseBitmap(loaded.mBitmap);
+                    }
+                }
+
+                return list;
+            } catch (InterruptedException e) {
+                // The task was cancelled
+            } finally {
+                // Photos framed but never taken from the loader go back to the pool
+                for (Future<LoadedPhoto> future : pending) {
+                    if (!future.cancel(true)) releaseLoaded(future);
                 }
             }
 
-            return list;
+            return null;
+        }
+
+        private void releaseLoaded(Future<LoadedPhoto> future) {
+            try {
+                final LoadedPhoto loaded = future.get();
+                if (loaded != null) ImageUtilities.releaseBitmap(loaded.mBitmap);
+            } catch (InterruptedException e) {
+                // The bitmap is left to the garbage collector
+            } catch (ExecutionException e) {
+                // Nothing was framed
+            }
+        }
+
+        /**
+         * Rotates and frames the specified photo. This method is invoked concurrently
+         * by the loader threads.
+         *
+         * @param bitmap The bitmap loaded by the ImageCache, or null if the photo
+         *               could not be loaded.
+         * @param photo The photo the bitmap was loaded from.
+         *
+         * @return The photo and its framed bitmap.
+         */
+        private LoadedPhoto frame(Bitmap bitmap, Flickr.Photo photo) {
+            // Cached bitmaps are shared and must not be recycled
+            if (bitmap == null) {
+                final boolean portrait = mRandom.nextFloat() >= 0.5f;
+                bitmap = BitmapFactory.decodeResource(getResources(), portrait ?
+                    R.drawable.not_found_small_1 : R.drawable.not_found_small_2);
+                final Bitmap framed = ImageUtilities.rotateAndFrame(bitmap);
+                bitmap.recycle();
+                return new LoadedPhoto(framed, photo);
+            }
+            return new LoadedPhoto(ImageUtilities.rotateAndFrame(bitmap), photo);
         }
 
         /**
@@ -375,30 +579,46 @@ public class PhotostreamActivity extends Activity implements
 
         @Override
         public void onPostExecute(Flickr.PhotoList result) {
-            mPageCount = result.getPageCount();
+            if (result != null) mPageCount = result.getPageCount();
             prepareMenu(mPageCount);
             mSwitcher.showNext();
-            mTask = null;            
+            mTask = null;
+
+            prefetchPhotos();
+            if (mStale && result != null) revalidatePhotos(result);
         }
     }
 
     /**
-     * Background task used to load the list of photos. The tasks queries Flickr for the
-     * list of photos to display and ends by starting the LoadPhotosTask.
+     * Background task used to reconcile a page displayed from the
+     * {@link PhotoListStore} with Flickr. The task loads the page from Flickr and
+     * stores it. When the page differs from the displayed one, the task ends by
+     * displaying the page again.
      */
-    private class GetPhotoListTask extends UserTask<Integer, Void, Flickr.PhotoList> {
+    private class RevalidatePhotosTask extends UserTask<Integer, Void, Flickr.PhotoList> {
+        private final Flickr.PhotoList mDisplayed;
+
+        private RevalidatePhotosTask(Flickr.PhotoList displayed) {
+            mDisplayed = displayed;
+        }
+
         public Flickr.PhotoList doInBackground(Integer... params) {
-            if (mUsername != null) {
-                mUser = Flickr.get().findByUserName(mUsername);
-                mUsername = null;
-            }
-            return Flickr.get().getPublicPhotos(mUser, PHOTOS_COUNT_PER_PAGE, params[0]);
+            final Flickr.PhotoList list = Flickr.get().getPublicPhotos(mUser,
+                    PHOTOS_COUNT_PER_PAGE, params[0]);
+            // Flickr returns an empty list when the request fails
+            if (list.getCount() == 0 || isCancelled()) return null;
+
+            PhotoListStore.get(PhotostreamActivity.this).save(mUser, PHOTOS_COUNT_PER_PAGE, list);
+            return PhotoListStore.isSamePage(mDisplayed, list) ? null : list;
         }
 
         @Override
-        public void onPostExecute(Flickr.PhotoList photoList) {
-            showPhotos(photoList);
-            mTask = null;
+        public void onPostExecute(Flickr.PhotoList result) {
+            mRevalidateTask = null;
+            if (result == null || result.getPage() != mCurrentPage || mTask != null) return;
+
+            mPageCount = result.getPageCount();
+            animateAndLoadPhotos(mNextAnimation);
         }
     }
 
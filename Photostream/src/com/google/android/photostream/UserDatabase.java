@@ -21,36 +21,76 @@ import android.database.sqlite.SQLiteDatabase;
 import android.content.Context;
 import android.content.ContentValues;
 import android.util.Log;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.provider.BaseColumns;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Helper class to interact with the database that stores the Flickr contacts.
  */
 class UserDatabase extends SQLiteOpenHelper implements BaseColumns {
     private static final String DATABASE_NAME = "flickr";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 5;
 
     static final String TABLE_USERS = "users";
     static final String COLUMN_USERNAME = "username";
     static final String COLUMN_REALNAME = "realname";
     static final String COLUMN_NSID = "nsid";
     static final String COLUMN_BUDDY_ICON = "buddy_icon";
+    static final String COLUMN_BUDDY_ICON_HASH = "buddy_icon_hash";
+    static final String COLUMN_BUDDY_ICON_REFRESH = "buddy_icon_refresh";
     static final String COLUMN_LAST_UPDATE = "last_update";
+    static final String COLUMN_FEED_ETAG = "feed_etag";
+    static final String COLUMN_FEED_LAST_MODIFIED = "feed_last_modified";
+
+    static final String TABLE_PHOTO_PAGES = "photo_pages";
+    static final String COLUMN_PER_PAGE = "per_page";
+    static final String COLUMN_PAGE = "page";
+    static final String COLUMN_PAGE_COUNT = "page_count";
+    static final String COLUMN_LAST_SYNC = "last_sync";
+
+    static final String TABLE_PHOTOS = "photos";
+    static final String COLUMN_PAGE_ID = "page_id";
+    static final String COLUMN_POSITION = "position";
+    static final String COLUMN_PHOTO_ID = "photo_id";
+    static final String COLUMN_SECRET = "secret";
+    static final String COLUMN_SERVER = "server";
+    static final String COLUMN_FARM = "farm";
+    static final String COLUMN_TITLE = "title";
+    static final String COLUMN_DATE = "date";
 
     static final String SORT_DEFAULT = COLUMN_USERNAME + " ASC";
 
+    private static UserDatabase sInstance;
+
     private Context mContext;
 
-    UserDatabase(Context context) {
+    private UserDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
     }
 
+    /**
+     * Returns the helper shared by the whole process. Every component must go through
+     * this helper: it keeps a single writable connection open, which serializes the
+     * writes of the activities and the update service instead of letting separate
+     * connections fail with SQLITE_BUSY. The database it opens must not be closed.
+     *
+     * @param context Any context of the application.
+     *
+     * @return The unique instance of this class.
+     */
+    static synchronized UserDatabase get(Context context) {
+        if (sInstance == null) {
+            sInstance = new UserDatabase(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE users ("
@@ -58,14 +98,48 @@ class UserDatabase extends SQLiteOpenHelper implements BaseColumns {
                 + "username TEXT, "
                 + "realname TEXT, "
                 + "nsid TEXT, "
-                + "buddy_icon BLOB,"
-                + "last_update INTEGER);");
+                + "buddy_icon BLOB, "
+                + "buddy_icon_hash TEXT, "
+                + "buddy_icon_refresh INTEGER, "
+                + "last_update INTEGER, "
+                + "feed_etag TEXT, "
+                + "feed_last_modified TEXT);");
+
+        createPhotoTables(db);
 
         addUser(db, "Bob Lee", "Bob Lee", "45701389@N00", R.drawable.boblee_buddyicon);
         addUser(db, "ericktseng", "Erick Tseng", "76701017@N00", R.drawable.ericktseng_buddyicon);
         addUser(db, "romainguy", "Romain Guy", "24046097@N00", R.drawable.romainguy_buddyicon);
     }
 
+    /**
+     * Creates the tables used by {@link PhotoListStore} to keep the pages of the
+     * photostreams. Each page is identified by the user's NSID, the number of photos
+     * per page and its index.
+     */
+    private static void createPhotoTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE photo_pages ("
+                + "_id INTEGER PRIMARY KEY, "
+                + "nsid TEXT, "
+                + "per_page INTEGER, "
+                + "page INTEGER, "
+                + "page_count INTEGER, "
+                + "last_sync INTEGER);");
+        db.execSQL("CREATE UNIQUE INDEX photo_pages_index ON photo_pages (nsid, per_page, page);");
+
+        db.execSQL("CREATE TABLE photos ("
+                + "_id INTEGER PRIMARY KEY, "
+                + "page_id INTEGER, "
+                + "position INTEGER, "
+                + "photo_id TEXT, "
+                + "secret TEXT, "
+                + "server TEXT, "
+                + "farm TEXT, "
+                + "title TEXT, "
+                + "date TEXT);");
+        db.execSQL("CREATE INDEX photos_index ON photos (page_id);");
+    }
+
     private void addUser(SQLiteDatabase db, String userName, String realName,
             String nsid, int icon) {
 
@@ -75,36 +149,112 @@ class UserDatabase extends SQLiteOpenHelper implements BaseColumns {
         values.put(COLUMN_NSID, nsid);
         values.put(COLUMN_LAST_UPDATE, System.currentTimeMillis());
 
-        final Bitmap bitmap = BitmapFactory.decodeResource(mContext.getResources(), icon);
-        writeBitmap(values, COLUMN_BUDDY_ICON, bitmap);
+        writeIcon(values, readResource(icon));
 
         db.insert(TABLE_USERS, COLUMN_LAST_UPDATE, values);
     }
 
-    static void writeBitmap(ContentValues values, String name, Bitmap bitmap) {
-        if (bitmap != null) {
-            // Try go guesstimate how much space the icon will take when serialized
-            // to avoid unnecessary allocations/copies during the write.
-            int size = bitmap.getWidth() * bitmap.getHeight() * 2;
-            ByteArrayOutputStream out = new ByteArrayOutputStream(size);
-            try {
-                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
-                out.flush();
-                out.close();
-
-                values.put(name, out.toByteArray());
-            } catch (IOException e) {
-                // Ignore
+    private byte[] readResource(int id) {
+        InputStream in = null;
+        try {
+            in = mContext.getResources().openRawResource(id);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.w(Flickr.LOG_TAG, "Could not read default buddy icon", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the specified encoded buddy icon, as downloaded from Flickr, and its hash.
+     * Storing the original data avoids decoding and re-compressing the icon.
+     *
+     * @param values The values to write the icon into.
+     * @param data The encoded icon, can be null.
+     */
+    static void writeIcon(ContentValues values, byte[] data) {
+        if (data != null) {
+            values.put(COLUMN_BUDDY_ICON, data);
+            values.put(COLUMN_BUDDY_ICON_HASH, hash(data));
+        }
+    }
+
+    /**
+     * Computes the hash used to detect changes of a buddy icon.
+     *
+     * @param data The encoded icon.
+     *
+     * @return The MD5 of the data as an hexadecimal string.
+     */
+    static String hash(byte[] data) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            final byte[] hash = digest.digest(data);
+
+            final StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
             }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 1) {
+            // Version 2 only adds the feed validators, keep the contacts
+            Log.w(Flickr.LOG_TAG, "Upgrading database from version " + oldVersion + " to 2");
+            db.execSQL("ALTER TABLE users ADD COLUMN feed_etag TEXT;");
+            db.execSQL("ALTER TABLE users ADD COLUMN feed_last_modified TEXT;");
+            oldVersion = 2;
+        }
+
+        if (oldVersion == 2) {
+            // Version 3 only adds the buddy icon hash, icons without a hash are
+            // replaced by the next refresh
+            Log.w(Flickr.LOG_TAG, "Upgrading database from version " + oldVersion + " to 3");
+            db.execSQL("ALTER TABLE users ADD COLUMN buddy_icon_hash TEXT;");
+            oldVersion = 3;
+        }
+
+        if (oldVersion == 3) {
+            // Version 4 only adds the stored photostream pages
+            Log.w(Flickr.LOG_TAG, "Upgrading database from version " + oldVersion + " to 4");
+            createPhotoTables(db);
+            oldVersion = 4;
+        }
+
+        if (oldVersion == 4) {
+            // Version 5 only adds the time of the last buddy icon refresh
+            Log.w(Flickr.LOG_TAG, "Upgrading database from version " + oldVersion + " to " +
+                    newVersion);
+            db.execSQL("ALTER TABLE users ADD COLUMN buddy_icon_refresh INTEGER;");
+            return;
+        }
+
         Log.w(Flickr.LOG_TAG, "Upgrading database from version " + oldVersion + " to " +
                 newVersion + ", which will destroy all old data");
 
         db.execSQL("DROP TABLE IF EXISTS users");
+        db.execSQL("DROP TABLE IF EXISTS photo_pages");
+        db.execSQL("DROP TABLE IF EXISTS photos");
         onCreate(db);
     }
 }
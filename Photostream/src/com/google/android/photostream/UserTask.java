@@ -22,14 +22,16 @@ import android.os.Process;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>UserTask enables proper and easy use of the UI thread. This class allows to
@@ -126,16 +128,26 @@ import java.util.concurrent.atomic.AtomicInteger;
  *     <li>The task can be executed only once (an exception will be thrown if
  *     a second execution is attempted.)</li>
  * </ul>
+ *
+ * <h2>Priorities</h2>
+ * <p>All the tasks share a fixed pool of threads. Tasks waiting for a thread are
+ * ordered by {@link UserTask.Priority}: a task that affects what the user is looking
+ * at ({@link UserTask.Priority#INTERACTIVE}, the default) runs before any queued
+ * prefetch or background task. Tasks of the same priority run in the order in which
+ * they were executed. The priority of a task is set with
+ * {@link #setPriority(UserTask.Priority)} before the task is executed.</p>
  */
 public abstract class UserTask<Params, Progress, Result> {
     private static final String LOG_TAG = "UserTask";
 
-    private static final int CORE_POOL_SIZE = 1;
-    private static final int MAXIMUM_POOL_SIZE = 10;
+    private static final int POOL_SIZE = 5;
     private static final int KEEP_ALIVE = 10;
 
+    // The queue is unbounded so that all the threads of the pool are used as soon
+    // as enough tasks are executed, a bounded queue would only start new threads
+    // once full
     private static final BlockingQueue<Runnable> sWorkQueue =
-            new LinkedBlockingQueue<Runnable>(MAXIMUM_POOL_SIZE);
+            new PriorityBlockingQueue<Runnable>(POOL_SIZE * 2);
 
     private static final ThreadFactory sThreadFactory = new ThreadFactory() {
         private final AtomicInteger mCount = new AtomicInteger(1);
@@ -145,8 +157,18 @@ public abstract class UserTask<Params, Progress, Result> {
         }
     };
 
-    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(CORE_POOL_SIZE,
-            MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sWorkQueue, sThreadFactory);
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(POOL_SIZE,
+            POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sWorkQueue, sThreadFactory);
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    private static final LaneMetrics[] sMetrics = new LaneMetrics[Priority.values().length];
+
+    static {
+        for (int i = 0; i < sMetrics.length; i++) {
+            sMetrics[i] = new LaneMetrics();
+        }
+    }
 
     private static final int MESSAGE_POST_RESULT = 0x1;
     private static final int MESSAGE_POST_PROGRESS = 0x2;
@@ -158,6 +180,7 @@ public abstract class UserTask<Params, Progress, Result> {
     private final FutureTask<Result> mFuture;
 
     private volatile Status mStatus = Status.PENDING;
+    private Priority mPriority = Priority.INTERACTIVE;
 
     /**
      * Indicates the current status of the task. Each status will be set only once
@@ -178,6 +201,27 @@ public abstract class UserTask<Params, Progress, Result> {
         FINISHED,
     }
 
+    /**
+     * Indicates the priority of a task. Queued tasks of a higher priority always run
+     * before queued tasks of a lower priority.
+     */
+    public enum Priority {
+        /**
+         * Work whose result the user is waiting for, for instance loading the
+         * photos currently displayed.
+         */
+        INTERACTIVE,
+        /**
+         * Work whose result the user will probably need soon, for instance loading
+         * the next page of photos.
+         */
+        PREFETCH,
+        /**
+         * Work whose result is not displayed, for instance checking for updates.
+         */
+        BACKGROUND,
+    }
+
     /**
      * Creates a new user task. This constructor must be invoked on the UI thread.
      */
@@ -219,6 +263,32 @@ public abstract class UserTask<Params, Progress, Result> {
         };
     }
 
+    /**
+     * Sets the priority of this task. This method must be invoked before
+     * {@link #execute(Object[])}. By default a task has the priority
+     * {@link UserTask.Priority#INTERACTIVE}.
+     *
+     * @param priority The new priority of the task.
+     *
+     * @throws IllegalStateException If the task was already executed.
+     */
+    public final void setPriority(Priority priority) {
+        if (mStatus != Status.PENDING) {
+            throw new IllegalStateException("Cannot change the priority of a task"
+                    + " that was already executed.");
+        }
+        mPriority = priority;
+    }
+
+    /**
+     * Returns the priority of this task.
+     *
+     * @return The priority of the task.
+     */
+    public final Priority getPriority() {
+        return mPriority;
+    }
+
     /**
      * Returns the current status of this task.
      *
@@ -394,11 +464,70 @@ public abstract class UserTask<Params, Progress, Result> {
         onPreExecute();
 
         mWorker.mParams = params;
-        sExecutor.execute(mFuture);
+        schedule(mPriority, mFuture);
 
         return this;
     }
 
+    /**
+     * Runs the specified work on the threads shared by all the tasks, with the
+     * specified priority. This can be used for background work that does not need
+     * to publish anything on the UI thread.
+     *
+     * @param priority The priority of the work.
+     * @param runnable The work to run.
+     *
+     * @return A Future that can be used to cancel the work.
+     */
+    public static Future<?> submit(Priority priority, Runnable runnable) {
+        final FutureTask<Object> future = new FutureTask<Object>(runnable, null);
+        schedule(priority, future);
+        return future;
+    }
+
+    /**
+     * Returns the number of tasks of the specified priority waiting for a thread.
+     *
+     * @param priority The priority of the tasks to count.
+     *
+     * @return The number of queued tasks.
+     */
+    public static int getQueueDepth(Priority priority) {
+        return sMetrics[priority.ordinal()].mQueued.get();
+    }
+
+    /**
+     * Returns the average time the tasks of the specified priority waited for a
+     * thread before starting.
+     *
+     * @param priority The priority of the tasks.
+     *
+     * @return The average wait time in milliseconds, or 0 if no task started yet.
+     */
+    public static long getAverageWaitTime(Priority priority) {
+        final LaneMetrics metrics = sMetrics[priority.ordinal()];
+        final int started = metrics.mStarted.get();
+        return started == 0 ? 0 : metrics.mTotalWaitTime.get() / started;
+    }
+
+    /**
+     * Returns the longest time a task of the specified priority waited for a thread
+     * before starting.
+     *
+     * @param priority The priority of the tasks.
+     *
+     * @return The longest wait time in milliseconds.
+     */
+    public static long getMaximumWaitTime(Priority priority) {
+        return sMetrics[priority.ordinal()].mMaxWaitTime.get();
+    }
+
+    private static void schedule(Priority priority, Runnable runnable) {
+        sMetrics[priority.ordinal()].mQueued.incrementAndGet();
+        sExecutor.execute(new PrioritizedRunnable(runnable, priority,
+                sSequence.getAndIncrement()));
+    }
+
     /**
      * This method can be invoked from {@link #doInBackground(Object[])} to
      * publish updates on the UI thread while the background computation is
@@ -444,6 +573,59 @@ public abstract class UserTask<Params, Progress, Result> {
         Params[] mParams;
     }
 
+    /**
+     * Wraps the work submitted to the executor to order it in the queue, first by
+     * priority and then by submission order.
+     */
+    private static class PrioritizedRunnable implements Runnable,
+            Comparable<PrioritizedRunnable> {
+
+        final Runnable mRunnable;
+        final Priority mPriority;
+        final long mSequence;
+        final long mQueueTime;
+
+        PrioritizedRunnable(Runnable runnable, Priority priority, long sequence) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+            mQueueTime = SystemClock.uptimeMillis();
+        }
+
+        public void run() {
+            sMetrics[mPriority.ordinal()].onStart(SystemClock.uptimeMillis() - mQueueTime);
+            mRunnable.run();
+        }
+
+        public int compareTo(PrioritizedRunnable other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.ordinal() - other.mPriority.ordinal();
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Queue depth and wait time of the tasks of one priority.
+     */
+    private static class LaneMetrics {
+        final AtomicInteger mQueued = new AtomicInteger();
+        final AtomicInteger mStarted = new AtomicInteger();
+        final AtomicLong mTotalWaitTime = new AtomicLong();
+        final AtomicLong mMaxWaitTime = new AtomicLong();
+
+        void onStart(long waitTime) {
+            mQueued.decrementAndGet();
+            mStarted.incrementAndGet();
+            mTotalWaitTime.addAndGet(waitTime);
+
+            long max;
+            while ((max = mMaxWaitTime.get()) < waitTime) {
+                if (mMaxWaitTime.compareAndSet(max, waitTime)) break;
+            }
+        }
+    }
+
     @SuppressWarnings({"RawUseOfParameterizedType"})
     private static class UserTaskResult<Data> {
         final UserTask mTask;
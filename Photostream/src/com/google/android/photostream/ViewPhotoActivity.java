@@ -73,6 +73,8 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
     private TextView mPhotoTitle;
     private TextView mPhotoDate;
 
+    private boolean mPhotoLoaded;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -150,6 +152,7 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
             mTask = new LoadPhotoTask().execute(mPhoto, width, height);
         } else {
             mPhotoView.setImageBitmap((Bitmap) data);
+            mPhotoLoaded = true;
             mSwitcher.showNext();
         }
     }
@@ -218,10 +221,11 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
      * display rotation.
      *
      * @return The Bitmap displayed in the ImageView, or null if the photo
-     *         wasn't loaded.
+     *         wasn't loaded or only its preview was displayed.
      */
     @Override
     public Object onRetainNonConfigurationInstance() {
+        if (!mPhotoLoaded) return null;
         final Drawable d = mPhotoView.getDrawable();
         return d != null ? ((BitmapDrawable) d).getBitmap() : null;
     }
@@ -256,20 +260,72 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
     }
 
     /**
-     * Background task to load the photo from Flickr. The task loads the bitmap,
-     * then scale it to the appropriate dimension. The task ends by readjusting
-     * the activity's layout so that everything aligns correctly.
+     * Displays the specified bitmap in the photo view and readjusts the activity's
+     * layout so that everything aligns correctly.
+     *
+     * @param bitmap The framed photo to display.
+     */
+    private void showPhoto(Bitmap bitmap) {
+        mPhotoView.setImageBitmap(bitmap);
+
+        // Find by how many pixels the title and date must be shifted on the
+        // horizontal axis to be left aligned with the photo
+        final int offsetX = (mPhotoView.getMeasuredWidth() - bitmap.getWidth()) / 2;
+
+        // Forces the ImageView to have the same size as its embedded bitmap
+        // This will remove the empty space between the title/date pair and
+        // the photo itself
+        LinearLayout.LayoutParams params;
+        params = (LinearLayout.LayoutParams) mPhotoView.getLayoutParams();
+        params.height = bitmap.getHeight();
+        params.weight = 0.0f;
+        mPhotoView.setLayoutParams(params);
+
+        params = (LinearLayout.LayoutParams) mPhotoTitle.getLayoutParams();
+        params.leftMargin = offsetX;
+        mPhotoTitle.setLayoutParams(params);
+
+        params = (LinearLayout.LayoutParams) mPhotoDate.getLayoutParams();
+        params.leftMargin = offsetX;
+        mPhotoDate.setLayoutParams(params);
+
+        if (mContainer.getVisibility() != View.VISIBLE) {
+            mContainer.startAnimation(AnimationUtils.loadAnimation(ViewPhotoActivity.this,
+                    R.anim.fade_in));
+            mContainer.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Background task to load the photo from Flickr. The task first looks for the
+     * thumbnail of the photo in the local cache, where PhotostreamActivity usually
+     * left it, and publishes it scaled up to the final dimension as a preview. The
+     * thumbnail is never downloaded, so that it cannot delay the photo. The task then
+     * loads the medium size photo and scales it to the appropriate dimension. The task
+     * ends by replacing the preview with the medium size photo.
      */
-    private class LoadPhotoTask extends UserTask<Object, Void, Bitmap> {
+    private class LoadPhotoTask extends UserTask<Object, Bitmap, Bitmap> {
+        private Bitmap mPreview;
+
         public Bitmap doInBackground(Object... params) {
-            Bitmap bitmap = ((Flickr.Photo) params[0]).loadPhotoBitmap(Flickr.PhotoSize.MEDIUM);
+            final Flickr.Photo photo = (Flickr.Photo) params[0];
+            final int width = (Integer) params[1];
+            final int height = (Integer) params[2];
+
+            // Cached bitmaps are shared and must not be recycled
+            final Bitmap thumbnail = ImageCache.get(ViewPhotoActivity.this).loadCachedBitmap(
+                    photo, Flickr.PhotoSize.THUMBNAIL);
+            if (thumbnail != null && !isCancelled()) {
+                publishProgress(ImageUtilities.scaleAndFrame(thumbnail, width, height));
+            }
+
+            // The photo is subsampled while decoding since it will be scaled down anyway
+            Bitmap bitmap = photo.loadPhotoBitmap(Flickr.PhotoSize.MEDIUM, width, height);
             if (bitmap == null) {
+                if (thumbnail != null) return null;
                 bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.not_found);
             }
 
-            final int width = (Integer) params[1];
-            final int height = (Integer) params[2];
-
             final Bitmap framed = ImageUtilities.scaleAndFrame(bitmap, width, height);
             bitmap.recycle();
 
@@ -277,35 +333,21 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
         }
 
         @Override
-        public void onPostExecute(Bitmap result) {
-            mPhotoView.setImageBitmap(result);
-
-            // Find by how many pixels the title and date must be shifted on the
-            // horizontal axis to be left aligned with the photo
-            final int offsetX = (mPhotoView.getMeasuredWidth() - result.getWidth()) / 2;
-
-            // Forces the ImageView to have the same size as its embedded bitmap
-            // This will remove the empty space between the title/date pair and
-            // the photo itself
-            LinearLayout.LayoutParams params;
-            params = (LinearLayout.LayoutParams) mPhotoView.getLayoutParams();
-            params.height = result.getHeight();
-            params.weight = 0.0f;
-            mPhotoView.setLayoutParams(params);
-
-            params = (LinearLayout.LayoutParams) mPhotoTitle.getLayoutParams();
-            params.leftMargin = offsetX;
-            mPhotoTitle.setLayoutParams(params);
+        public void onProgressUpdate(Bitmap... values) {
+            mPreview = values[0];
+            showPhoto(mPreview);
+        }
 
-            params = (LinearLayout.LayoutParams) mPhotoDate.getLayoutParams();
-            params.leftMargin = offsetX;
-            mPhotoDate.setLayoutParams(params);
+        @Override
+        public void onPostExecute(Bitmap result) {
+            // When the medium size photo cannot be loaded, keep the preview
+            if (result != null) {
+                showPhoto(result);
+                ImageUtilities.releaseBitmap(mPreview);
+            }
+            mPhotoLoaded = true;
 
             mSwitcher.showNext();
-            mContainer.startAnimation(AnimationUtils.loadAnimation(ViewPhotoActivity.this,
-                    R.anim.fade_in));
-            mContainer.setVisibility(View.VISIBLE);
-
             mTask = null;            
         }
     }
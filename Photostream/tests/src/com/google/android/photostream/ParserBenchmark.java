@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.google.android.photostream.tests.R;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Measures how long {@link Flickr} takes to parse a recorded response of 500 photos,
+ * stored in tests/res/raw/benchmark_photos.xml. The benchmark reports the average time
+ * needed to parse the whole response and the average time before the first photo
+ * reaches the {@link Flickr.PhotoCallback}, which is when the thumbnail loader can
+ * start working. No network request is performed.
+ *
+ * Run with:
+ *
+ * adb shell am instrument -w \
+ *     com.google.android.photostream.tests/com.google.android.photostream.ParserBenchmark
+ *
+ * The benchmark and its recorded response live in their own test package so that
+ * neither ships with Photostream; the package is installed next to Photostream and
+ * runs in its process.
+ */
+public class ParserBenchmark extends Instrumentation {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 20;
+
+    private long mFirstPhotoTime;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        final Bundle results = new Bundle();
+
+        try {
+            final byte[] response = readResponse();
+            final Flickr flickr = Flickr.get();
+
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                parse(flickr, response);
+            }
+
+            long totalTime = 0;
+            long firstPhotoTime = 0;
+            int count = 0;
+
+            for (int i = 0; i < ITERATIONS; i++) {
+                final long start = SystemClock.elapsedRealtime();
+                count = parse(flickr, response);
+                totalTime += SystemClock.elapsedRealtime() - start;
+                firstPhotoTime += mFirstPhotoTime - start;
+            }
+
+            final String report = "Parsed " + count + " photos in " + totalTime / ITERATIONS +
+                    " ms, first photo after " + firstPhotoTime / ITERATIONS + " ms";
+            android.util.Log.d(Flickr.LOG_TAG, report);
+
+            results.putString(REPORT_KEY_STREAMRESULT, report + "\n");
+            finish(Activity.RESULT_OK, results);
+        } catch (IOException e) {
+            android.util.Log.e(Flickr.LOG_TAG, "Could not run the parser benchmark", e);
+            results.putString(REPORT_KEY_STREAMRESULT, "Could not run the benchmark: " + e + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+        }
+    }
+
+    private int parse(Flickr flickr, byte[] response) throws IOException {
+        mFirstPhotoTime = 0;
+
+        final Flickr.PhotoList photos = new Flickr.PhotoList(0, 0);
+        flickr.parsePhotos(new ByteArrayInputStream(response), photos,
+                new Flickr.PhotoCallback() {
+            public void onPhoto(Flickr.Photo photo) {
+                if (mFirstPhotoTime == 0) mFirstPhotoTime = SystemClock.elapsedRealtime();
+            }
+        });
+
+        return photos.getCount();
+    }
+
+    /**
+     * Loads the recorded response in memory so that reading the resource is not
+     * measured by the benchmark.
+     */
+    private byte[] readResponse() throws IOException {
+        final InputStream in = getContext().getResources().openRawResource(
+                R.raw.benchmark_photos);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.downloader;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Measures the verification throughput of each of the CHECKSUM_TYPES
+ * supported by DownloaderActivity. The file is read the same way the
+ * downloader verifies it: positional FileChannel reads into a heap buffer
+ * whose array is hashed in place. A pass without any digest gives the
+ * throughput of the reads alone.
+ *
+ * Run with:
+ *
+ * adb shell am instrument -w [-e size_mb 256] [-e path /sdcard/file]
+ *     com.google.android.downloader/.ChecksumBenchmark
+ *
+ * An existing file given with path is read as is. Otherwise a file of
+ * size_mb megabytes of random content is created, and deleted afterwards.
+ */
+public class ChecksumBenchmark extends Instrumentation {
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        mArguments = arguments;
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        Bundle results = new Bundle();
+        String sizeArgument = getArgument("size_mb");
+        String pathArgument = getArgument("path");
+        long size = (sizeArgument != null ? Long.parseLong(sizeArgument)
+                : DEFAULT_SIZE_MB) * 1024 * 1024;
+        File file = new File(pathArgument != null ? pathArgument
+                : DEFAULT_PATH);
+        StringBuilder report = new StringBuilder();
+        boolean created = !file.exists();
+        try {
+            if (created) {
+                createFile(file, size);
+            } else {
+                size = file.length();
+            }
+            // The first pass only warms up the file system caches.
+            read(file, null);
+            report.append(format("read only", size, read(file, null)));
+            for(String checksumType : DownloaderActivity.CHECKSUM_TYPES) {
+                MessageDigest digest =
+                    DownloaderActivity.createChecksumDigest(checksumType);
+                report.append(format(checksumType, size, read(file, digest)));
+            }
+            Log.i(LOG_TAG, report.toString());
+            results.putString(REPORT_KEY_STREAMRESULT, report.toString());
+            finish(Activity.RESULT_OK, results);
+        } catch (IOException e) {
+            fail(results, e);
+        } catch (NoSuchAlgorithmException e) {
+            fail(results, e);
+        } finally {
+            if (created) {
+                file.delete();
+            }
+        }
+    }
+
+    private String getArgument(String name) {
+        return mArguments != null ? mArguments.getString(name) : null;
+    }
+
+    private void fail(Bundle results, Exception e) {
+        Log.e(LOG_TAG, "Checksum benchmark failed", e);
+        results.putString(REPORT_KEY_STREAMRESULT,
+                "Checksum benchmark failed: " + e + "\n");
+        finish(Activity.RESULT_CANCELED, results);
+    }
+
+    private void createFile(File file, long size) throws IOException {
+        Log.i(LOG_TAG, "Creating " + file + " of " + size + " bytes");
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Random random = new Random(0);
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            while(size > 0) {
+                random.nextBytes(buffer);
+                int length = (int) Math.min(buffer.length, size);
+                os.write(buffer, 0, length);
+                size -= length;
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Reads the whole file into the digest, if any.
+     * @return the time spent, in milliseconds.
+     */
+    private long read(File file, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long start = SystemClock.elapsedRealtime();
+        FileInputStream is = new FileInputStream(file);
+        try {
+            FileChannel channel = is.getChannel();
+            long position = 0;
+            while(true) {
+                buffer.clear();
+                int bytesRead = channel.read(buffer, position);
+                if (bytesRead < 0) {
+                    break;
+                }
+                if (digest != null) {
+                    digest.update(buffer.array(), buffer.arrayOffset(),
+                            bytesRead);
+                }
+                position += bytesRead;
+            }
+            if (digest != null) {
+                digest.digest();
+            }
+        } finally {
+            is.close();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private String format(String name, long size, long time) {
+        long megabytesPerSecond = size * 1000 / (1024 * 1024)
+                / Math.max(1, time);
+        return name + ": " + time + " ms, " + megabytesPerSecond + " MB/s\n";
+    }
+
+    private Bundle mArguments;
+
+    private final static String LOG_TAG = "ChecksumBenchmark";
+    private final static long DEFAULT_SIZE_MB = 256;
+    private final static String DEFAULT_PATH = "/sdcard/checksum_benchmark.tmp";
+    // Same size as the verification buffers of DownloaderActivity.
+    private final static int BUFFER_SIZE = 256 * 1024;
+}
@@ -39,12 +39,25 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlSerializer;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -53,14 +66,29 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 public class DownloaderActivity extends Activity {
 
@@ -126,6 +154,20 @@ public class DownloaderActivity extends Activity {
         return result;
     }
 
+    /**
+     * Creates the digest which computes a checksum of the given type. Also
+     * used by ChecksumBenchmark.
+     * @param checksumType One of CHECKSUM_TYPES.
+     */
+    static MessageDigest createChecksumDigest(String checksumType)
+        throws NoSuchAlgorithmException {
+        if (CHECKSUM_CRC32.equals(checksumType)) {
+            return new Crc32Digest();
+        }
+        return MessageDigest.getInstance(CHECKSUM_SHA256.equals(checksumType)
+                ? "SHA-256" : "MD5");
+    }
+
     private static boolean versionMatches(File dest, String expectedVersion) {
         Config config = getLocalConfig(dest, LOCAL_CONFIG_FILE);
         if (config != null) {
@@ -165,6 +207,7 @@ public class DownloaderActivity extends Activity {
                 intent.getStringExtra(EXTRA_CUSTOM_TEXT));
         mProgress = (TextView) findViewById(R.id.progress);
         mTimeRemaining = (TextView) findViewById(R.id.time_remaining);
+        mVerifyStatus = (TextView) findViewById(R.id.verify_status);
         Button button = (Button) findViewById(R.id.cancel);
         button.setOnClickListener(new Button.OnClickListener() {
             public void onClick(View v) {
@@ -181,6 +224,7 @@ public class DownloaderActivity extends Activity {
         mSuppressErrorMessages = false;
         mProgress.setText("");
         mTimeRemaining.setText("");
+        mVerifyStatus.setText("");
         mDownloadThread = new Thread(new Downloader(), "Downloader");
         mDownloadThread.setPriority(Thread.NORM_PRIORITY - 1);
         mDownloadThread.start();
@@ -282,11 +326,21 @@ public class DownloaderActivity extends Activity {
         mTimeRemaining.setText(timeRemaining);
     }
 
-    private void onReportVerifying() {
-        mProgress.setText(getString(R.string.download_activity_verifying));
+    private void onReportVerifying(int progress) {
+        String text = getString(R.string.download_activity_verifying);
+        if (progress >= 0) {
+            text += " " + mPercentFormat.format(progress / 10000.0);
+        }
+        mProgress.setText(text);
         mTimeRemaining.setText("");
     }
 
+    private void onReportFileVerified(String dest, boolean passed) {
+        mVerifyStatus.setText(getString(passed
+                ? R.string.download_activity_file_verified
+                : R.string.download_activity_file_corrupt, dest));
+    }
+
     private static void quietClose(InputStream is) {
         try {
             if (is != null) {
@@ -307,6 +361,16 @@ public class DownloaderActivity extends Activity {
         }
     }
 
+    private static void quietClose(RandomAccessFile file) {
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            // Don't care.
+        }
+    }
+
     private static class Config {
         long getSize() {
             long result = 0;
@@ -316,20 +380,26 @@ public class DownloaderActivity extends Activity {
             return result;
         }
         static class File {
-            public File(String src, String dest, String md5, long size) {
+            public File(String src, String dest, String checksumType,
+                    String checksum, long size) {
                 if (src != null) {
-                    this.mParts.add(new Part(src, md5, size));
+                    this.mParts.add(new Part(src, checksumType, checksum,
+                            size));
                 }
                 this.dest = dest;
             }
             static class Part {
-                Part(String src, String md5, long size) {
+                Part(String src, String checksumType, String checksum,
+                        long size) {
                     this.src = src;
-                    this.md5 = md5;
+                    this.checksumType = checksumType;
+                    this.checksum = checksum;
                     this.size = size;
                 }
                 String src;
-                String md5;
+                // One of CHECKSUM_TYPES, or null if the part has no checksum.
+                String checksumType;
+                String checksum;
                 long size;
             }
             ArrayList<Part> mParts = new ArrayList<Part>();
@@ -357,6 +427,9 @@ public class DownloaderActivity extends Activity {
      *   ...
      * </config>
      *
+     * A file or part can declare its checksum with any of the
+     * CHECKSUM_TYPES attributes. When several are declared, only the
+     * fastest one is checked.
      */
     private static class ConfigHandler extends DefaultHandler {
 
@@ -379,21 +452,40 @@ public class DownloaderActivity extends Activity {
             } else if (localName.equals("file")) {
                 String src = attributes.getValue("", "src");
                 String dest = getRequiredString(attributes, "dest");
-                String md5 = attributes.getValue("", "md5");
+                String checksumType = getChecksumType(attributes);
+                String checksum = (checksumType != null)
+                        ? attributes.getValue("", checksumType) : null;
                 long size = getLong(attributes, "size", -1);
-                mConfig.mFiles.add(new Config.File(src, dest, md5, size));
+                mConfig.mFiles.add(new Config.File(src, dest, checksumType,
+                        checksum, size));
             } else if (localName.equals("part")) {
                 String src = getRequiredString(attributes, "src");
-                String md5 = attributes.getValue("", "md5");
+                String checksumType = getChecksumType(attributes);
+                String checksum = (checksumType != null)
+                        ? attributes.getValue("", checksumType) : null;
                 long size = getLong(attributes, "size", -1);
                 int length = mConfig.mFiles.size();
                 if (length > 0) {
                     mConfig.mFiles.get(length-1).mParts.add(
-                            new Config.File.Part(src, md5, size));
+                            new Config.File.Part(src, checksumType, checksum,
+                                    size));
                 }
             }
         }
 
+        /**
+         * @return the fastest checksum type declared by the attributes, or
+         * null if there is none.
+         */
+        private static String getChecksumType(Attributes attributes) {
+            for(String type : CHECKSUM_TYPES) {
+                if (attributes.getValue("", type) != null) {
+                    return type;
+                }
+            }
+            return null;
+        }
+
         private static String getRequiredString(Attributes attributes,
                 String localName) throws SAXException {
             String result = attributes.getValue("", localName);
@@ -416,6 +508,94 @@ public class DownloaderActivity extends Activity {
         public Config mConfig;
     }
 
+    /**
+     * A byte range of a part, downloaded over its own connection and written
+     * at its own offset in the destination file.
+     */
+    private static class Segment {
+        Segment(Config.File.Part part, String dest, long partOffset,
+                long start, long end) {
+            this.part = part;
+            this.dest = dest;
+            this.partOffset = partOffset;
+            this.start = start;
+            this.end = end;
+        }
+        Config.File.Part part;
+        String dest;
+        // Offset of the part in the destination file.
+        long partOffset;
+        // Range of the segment in the part, end excluded.
+        long start;
+        long end;
+        // Number of bytes of the segment already written.
+        long done;
+        // True if the segment covers a part whose server ignores byte
+        // ranges. The part is then downloaded in one request from its start.
+        boolean wholePart;
+
+        String getKey() {
+            return getKey(dest, partOffset + start);
+        }
+
+        static String getKey(String dest, long offset) {
+            return dest + "@" + offset;
+        }
+    }
+
+    /**
+     * The digest of the first bytes of a part, along with their number.
+     */
+    private static class DigestCheckpoint {
+        DigestCheckpoint(MessageDigest digest) {
+            this.digest = digest;
+        }
+        MessageDigest digest;
+        long length;
+    }
+
+    /**
+     * Exposes CRC32 as a MessageDigest, so that it can be used wherever a
+     * digest is. The digest is the big-endian value of the CRC.
+     */
+    private static class Crc32Digest extends MessageDigest {
+        Crc32Digest() {
+            super("CRC32");
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            mCrc.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            mCrc.update(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            long value = mCrc.getValue();
+            mCrc.reset();
+            return new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16),
+                (byte) (value >>> 8), (byte) value
+            };
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 4;
+        }
+
+        @Override
+        protected void engineReset() {
+            mCrc.reset();
+        }
+
+        private final CRC32 mCrc = new CRC32();
+    }
+
     private class DownloaderException extends Exception {
         public DownloaderException(String reason) {
             super(reason);
@@ -434,7 +614,7 @@ public class DownloaderActivity extends Activity {
 
             try {
                 // Download files.
-                mHttpClient = new DefaultHttpClient();
+                mHttpClient = createHttpClient();
                 Config config = getConfig();
                 filter(config);
                 persistantDownload(config);
@@ -446,6 +626,22 @@ public class DownloaderActivity extends Activity {
             }
         }
 
+        private DefaultHttpClient createHttpClient() {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            ConnManagerParams.setMaxTotalConnections(params,
+                    MAX_CONNECTIONS + MAX_PROBES);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(MAX_CONNECTIONS + MAX_PROBES));
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http",
+                    PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https",
+                    SSLSocketFactory.getSocketFactory(), 443));
+            return new DefaultHttpClient(
+                    new ThreadSafeClientConnManager(params, registry), params);
+        }
+
         private void persistantDownload(Config config)
         throws ClientProtocolException, DownloaderException, IOException {
             while(true) {
@@ -475,6 +671,8 @@ public class DownloaderActivity extends Activity {
             File localConfigFile = new File(mDataDir, LOCAL_CONFIG_FILE_TEMP);
             HashSet<String> keepSet = new HashSet<String>();
             keepSet.add(localConfigFile.getCanonicalPath());
+            keepSet.add(new File(mDataDir, LOCAL_SEGMENTS_FILE)
+                    .getCanonicalPath());
 
             HashMap<String, Config.File> fileMap =
                 new HashMap<String, Config.File>();
@@ -546,9 +744,15 @@ public class DownloaderActivity extends Activity {
                     Message.obtain(mHandler, MSG_REPORT_PROGRESS, progress, 0));
         }
 
-        private void reportVerifying() {
+        private void reportVerifying(int progress) {
             mHandler.sendMessage(
-                    Message.obtain(mHandler, MSG_REPORT_VERIFYING));
+                    Message.obtain(mHandler, MSG_REPORT_VERIFYING, progress, 0));
+        }
+
+        private void reportFileVerified(String dest, boolean passed) {
+            mHandler.sendMessage(
+                    Message.obtain(mHandler, MSG_REPORT_FILE_VERIFIED,
+                            passed ? 1 : 0, 0, dest));
         }
 
         private Config getConfig() throws DownloaderException,
@@ -603,14 +807,551 @@ public class DownloaderActivity extends Activity {
         private void download(Config config) throws DownloaderException,
             ClientProtocolException, IOException {
             mDownloadedSize = 0;
-            getSizes(config);
-            Log.i(LOG_TAG, "Total bytes to download: "
-                    + mTotalExpectedSize);
-            for(Config.File file : config.mFiles) {
+            mTotalExpectedSize = config.getSize();
+            mSegmentState = loadSegmentState();
+            mSequentialFiles = new ArrayList<Config.File>();
+            mPendingSegments = 0;
+            ExecutorService segmentExecutor = createExecutor(MAX_CONNECTIONS,
+                    "Downloader #");
+            mSegmentService = new ExecutorCompletionService<SegmentDownload>(
+                    segmentExecutor);
+            ExecutorService probeExecutor = null;
+            try {
+                // Files whose sizes are known start downloading right away,
+                // the others once their sizes have been probed.
+                ArrayList<Config.File> unknownFiles =
+                    new ArrayList<Config.File>();
+                for(Config.File file : config.mFiles) {
+                    if (hasUnknownSize(file)) {
+                        unknownFiles.add(file);
+                    } else {
+                        scheduleFile(file);
+                    }
+                }
+                if (!unknownFiles.isEmpty()) {
+                    probeExecutor = createExecutor(MAX_PROBES, "Size probe #");
+                    getSizes(config, unknownFiles, probeExecutor);
+                }
+                Log.i(LOG_TAG, "Total bytes to download: "
+                        + mTotalExpectedSize);
+                waitForSegments(true);
+            } catch (InterruptedException e) {
+                Log.i(LOG_TAG, "downloader thread interrupted.");
+                throw new DownloaderException("Thread interrupted");
+            } finally {
+                if (probeExecutor != null) {
+                    probeExecutor.shutdownNow();
+                }
+                segmentExecutor.shutdownNow();
+                abortActiveRequests();
+                awaitTermination(probeExecutor);
+                awaitTermination(segmentExecutor);
+            }
+            for(Config.File file : mSequentialFiles) {
                 downloadFile(file);
             }
         }
 
+        private boolean hasUnknownSize(Config.File file) {
+            for(Config.File.Part part : file.mParts) {
+                if (part.size < 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Starts downloading the segments of a file, or defers the file to
+         * the sequential download if the size of one of its parts is
+         * unknown.
+         */
+        private void scheduleFile(Config.File file)
+            throws DownloaderException, IOException {
+            ArrayList<PartDownload> parts = new ArrayList<PartDownload>();
+            if (!planSegments(file, parts)) {
+                mSequentialFiles.add(file);
+                return;
+            }
+            for(PartDownload part : parts) {
+                for(SegmentDownload download : part.mSegments) {
+                    submitSegment(download);
+                }
+            }
+        }
+
+        private void submitSegment(SegmentDownload download) {
+            download.mFuture = mSegmentService.submit(download);
+            mPendingSegments++;
+        }
+
+        /**
+         * Splits the parts of a file into segments which can be downloaded in
+         * parallel. The destination file is allocated at its final size and
+         * the segments already downloaded by a previous attempt are skipped.
+         * A part whose server answered a byte range request with the whole
+         * part is planned as a single segment, downloaded from its start.
+         * @return false if the size of a part is unknown, in which case the
+         * file must be downloaded sequentially.
+         */
+        private boolean planSegments(Config.File file,
+                ArrayList<PartDownload> parts)
+            throws DownloaderException, IOException {
+            for(Config.File.Part part : file.mParts) {
+                if (part.size < 0) {
+                    return false;
+                }
+            }
+            long fileSize = file.getSize();
+            File dest = new File(mDataDir, file.dest);
+            long existingSize = dest.isFile() ? dest.length() : 0;
+            // The saved progress is only valid if the file was allocated
+            // for this config. Otherwise the existing bytes are assumed to be
+            // a prefix of the file, as written by a sequential download. A
+            // file of the full size may have been allocated without its
+            // progress being saved, so it is downloaded again.
+            String allocatedSize = mSegmentState.getProperty(file.dest);
+            boolean useState = (existingSize == fileSize)
+                    && Long.toString(fileSize).equals(allocatedSize);
+            if (!useState && (existingSize >= fileSize)) {
+                existingSize = 0;
+            }
+
+            long partOffset = 0;
+            for(Config.File.Part part : file.mParts) {
+                PartDownload partDownload = new PartDownload(file, part,
+                        partOffset);
+                long partDone = 0;
+                for(long start = 0; start < part.size;
+                        start += MAX_SEGMENT_SIZE) {
+                    long end = Math.min(part.size, start + MAX_SEGMENT_SIZE);
+                    Segment segment = new Segment(part, file.dest, partOffset,
+                            start, end);
+                    if (useState) {
+                        String done = mSegmentState.getProperty(
+                                segment.getKey());
+                        segment.done = (done != null) ? Long.parseLong(done) : 0;
+                    } else {
+                        segment.done = Math.max(0, Math.min(end - start,
+                                existingSize - partOffset - start));
+                    }
+                    partDone += segment.done;
+                    mSegmentState.setProperty(segment.getKey(),
+                            Long.toString(segment.done));
+                    if (segment.done < end - start) {
+                        partDownload.mSegments.add(
+                                new SegmentDownload(partDownload, segment));
+                    }
+                }
+                if (!partDownload.mSegments.isEmpty()
+                        && mUnrangedParts.contains(part)) {
+                    partDownload.mSegments.clear();
+                    partDownload.mSegments.add(new SegmentDownload(
+                            partDownload, createWholePartSegment(partDownload)));
+                    partDone = 0;
+                }
+                addDownloadedSize(partDownload, partDone);
+                if (!partDownload.mSegments.isEmpty()) {
+                    parts.add(partDownload);
+                }
+                partOffset += part.size;
+            }
+
+            // The state must be saved before the file grows to its full
+            // size, which would otherwise look complete.
+            mSegmentState.setProperty(file.dest, Long.toString(fileSize));
+            saveSegmentState();
+            RandomAccessFile raf = openRandomAccess(file.dest);
+            try {
+                raf.setLength(fileSize);
+            } finally {
+                quietClose(raf);
+            }
+            return true;
+        }
+
+        private ExecutorService createExecutor(int threadCount,
+                final String namePrefix) {
+            return Executors.newFixedThreadPool(threadCount,
+                    new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            namePrefix + mCount.getAndIncrement());
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * Gives the threads of a stopped executor some time to finish, so
+         * that they have saved their progress.
+         */
+        private void awaitTermination(ExecutorService executor) {
+            if (executor == null) {
+                return;
+            }
+            try {
+                executor.awaitTermination(SHUTDOWN_TIMEOUT,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Don't care.
+            }
+        }
+
+        /**
+         * Checks the segments which completed. Segments are checked in the
+         * order they complete, so that the first failure stops the download.
+         * A part whose server ignored a byte range is restarted, and the
+         * checksum of a part is checked as soon as all its segments are
+         * written.
+         * @param block true to wait for all the pending segments.
+         */
+        private void waitForSegments(boolean block)
+            throws InterruptedException, DownloaderException, IOException {
+            while (mPendingSegments > 0) {
+                Future<SegmentDownload> future = block ? mSegmentService.take()
+                        : mSegmentService.poll();
+                if (future == null) {
+                    return;
+                }
+                mPendingSegments--;
+                // Segments are cancelled when their part is downloaded again.
+                if (future.isCancelled()) {
+                    continue;
+                }
+                SegmentDownload download = getResult(future);
+                PartDownload part = download.mPart;
+                if (!part.mSegments.remove(download)) {
+                    continue;
+                }
+                if (download.mRangeIgnored) {
+                    downloadWholePart(part);
+                } else if (part.mSegments.isEmpty()) {
+                    checkPart(part);
+                }
+            }
+        }
+
+        /**
+         * Checks the checksum of a part whose segments are all written. If it
+         * does not match, the progress of the part is reset so that the next
+         * attempt only downloads this part again.
+         */
+        private void checkPart(PartDownload part)
+            throws DownloaderException, IOException {
+            Config.File.Part p = part.mPart;
+            if (p.checksum == null) {
+                return;
+            }
+            MessageDigest digest = createDigest(p.checksumType);
+            FileInputStream is = openInput(part.mFile.dest);
+            try {
+                readIntoDigest(is.getChannel(), part.mPartOffset, p.size,
+                        digest, mVerifyBuffers.get(), false);
+            } finally {
+                quietClose(is);
+            }
+            String hash = getHash(digest);
+            if (!hash.equalsIgnoreCase(p.checksum)) {
+                Log.e(LOG_TAG, "web " + p.checksumType
+                        + " checksums don't match. "
+                        + p.src + "\nExpected "
+                        + p.checksum + "\n     got " + hash);
+                resetSegmentProgress(part);
+                throw new DownloaderException(
+                      "Received bad data from web server");
+            }
+            Log.i(LOG_TAG, "web " + p.checksumType + " checksum matches.");
+        }
+
+        /**
+         * Restarts a part whose server ignored a byte range. The remaining
+         * segments of the part are cancelled and the part is downloaded in
+         * one request from its start. Otherwise each segment would receive
+         * the part from its start, and the traffic would grow with the
+         * square of the number of segments.
+         */
+        private void downloadWholePart(PartDownload part) {
+            Log.i(LOG_TAG, "Byte ranges ignored, downloading " + part.mPart.src
+                    + " in one request");
+            mUnrangedParts.add(part.mPart);
+            for(SegmentDownload download : part.mSegments) {
+                download.cancel();
+            }
+            part.mSegments.clear();
+            resetDownloadedSize(part);
+            SegmentDownload download = new SegmentDownload(part,
+                    createWholePartSegment(part));
+            part.mSegments.add(download);
+            submitSegment(download);
+        }
+
+        private Segment createWholePartSegment(PartDownload part) {
+            Segment segment = new Segment(part.mPart, part.mFile.dest,
+                    part.mPartOffset, 0, part.mPart.size);
+            segment.wholePart = true;
+            return segment;
+        }
+
+        /**
+         * Returns the result of a completed task, rethrowing its failure.
+         */
+        private <T> T getResult(Future<T> future)
+            throws InterruptedException, DownloaderException, IOException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof DownloaderException) {
+                    throw (DownloaderException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new DownloaderException(cause.toString());
+            }
+        }
+
+        /**
+         * The segments of a part which remain to be downloaded by the
+         * current attempt. Only used by the downloader thread, except for
+         * the progress.
+         */
+        private class PartDownload {
+            PartDownload(Config.File file, Config.File.Part part,
+                    long partOffset) {
+                mFile = file;
+                mPart = part;
+                mPartOffset = partOffset;
+            }
+
+            final Config.File mFile;
+            final Config.File.Part mPart;
+            final long mPartOffset;
+            final ArrayList<SegmentDownload> mSegments =
+                new ArrayList<SegmentDownload>();
+            // Bytes of the part counted in the progress, guarded by the
+            // Downloader.
+            long mCounted;
+        }
+
+        /**
+         * Downloads one segment and saves its progress when it stops. If
+         * the server ignores the byte range, the segment stops right away
+         * and reports it.
+         */
+        private class SegmentDownload implements Callable<SegmentDownload> {
+            SegmentDownload(PartDownload part, Segment segment) {
+                mPart = part;
+                mSegment = segment;
+            }
+
+            public SegmentDownload call() throws Exception {
+                Segment segment = mSegment;
+                HttpGet request = new HttpGet(normalizeUrl(segment.part.src));
+                mRequest = request;
+                addActiveRequest(request);
+                RandomAccessFile raf = null;
+                InputStream is = null;
+                long bytesToRead = segment.end - segment.start - segment.done;
+                try {
+                    if (segment.wholePart) {
+                        is = get(request, 0, segment.end);
+                    } else {
+                        is = getRange(request, segment.start + segment.done,
+                                segment.end);
+                        if (is == null) {
+                            mRangeIgnored = true;
+                            return this;
+                        }
+                    }
+                    raf = openRandomAccess(segment.dest);
+                    raf.seek(segment.partOffset + segment.start
+                            + segment.done);
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    while (bytesToRead > 0) {
+                        if (Thread.interrupted()) {
+                            request.abort();
+                            throw new DownloaderException("Thread interrupted");
+                        }
+                        int bytesRead = is.read(buffer, 0,
+                                (int) Math.min(buffer.length, bytesToRead));
+                        if (bytesRead < 0) {
+                            break;
+                        }
+                        raf.write(buffer, 0, bytesRead);
+                        segment.done += bytesRead;
+                        bytesToRead -= bytesRead;
+                        addDownloadedSize(mPart, bytesRead);
+                    }
+                    if (bytesToRead > 0) {
+                        Log.e(LOG_TAG, "Bad file transfer from server: "
+                                + segment.part.src + " Expected "
+                                + (segment.end - segment.start)
+                                + " Received " + segment.done);
+                        throw new DownloaderException(
+                                "Incorrect number of bytes received from server");
+                    }
+                    // Drop the connection rather than read more bytes than
+                    // requested.
+                    if (is.read() >= 0) {
+                        request.abort();
+                    }
+                } finally {
+                    if (bytesToRead > 0) {
+                        request.abort();
+                    }
+                    quietClose(is);
+                    quietClose(raf);
+                    removeActiveRequest(request);
+                    mRequest = null;
+                    // The part of a cancelled segment is downloaded again.
+                    if (!mCancelled) {
+                        saveSegmentProgress(segment);
+                    }
+                }
+                return this;
+            }
+
+            /**
+             * Cancels the segment and aborts its request. Called from the
+             * downloader thread.
+             */
+            void cancel() {
+                mCancelled = true;
+                if (mFuture.cancel(true)) {
+                    HttpGet request = mRequest;
+                    if (request != null) {
+                        request.abort();
+                    }
+                }
+            }
+
+            final PartDownload mPart;
+            private final Segment mSegment;
+            Future<SegmentDownload> mFuture;
+            boolean mRangeIgnored;
+            private volatile HttpGet mRequest;
+            private volatile boolean mCancelled;
+        }
+
+        private void addActiveRequest(HttpRequestBase request) {
+            synchronized (mActiveRequests) {
+                mActiveRequests.add(request);
+            }
+        }
+
+        private void removeActiveRequest(HttpRequestBase request) {
+            synchronized (mActiveRequests) {
+                mActiveRequests.remove(request);
+            }
+        }
+
+        /**
+         * Aborts the requests being executed by the segment and probe
+         * threads, which unblocks the threads reading from them.
+         */
+        private void abortActiveRequests() {
+            synchronized (mActiveRequests) {
+                for(HttpRequestBase request : mActiveRequests) {
+                    request.abort();
+                }
+                mActiveRequests.clear();
+            }
+        }
+
+        private Properties loadSegmentState() {
+            Properties state = new Properties();
+            File stateFile = new File(mDataDir, LOCAL_SEGMENTS_FILE);
+            if (stateFile.exists()) {
+                FileInputStream is = null;
+                try {
+                    is = new FileInputStream(stateFile);
+                    state.load(is);
+                } catch (IOException e) {
+                    // Without state, allocated files are downloaded again.
+                    Log.w(LOG_TAG, "Unable to read segments file", e);
+                    state.clear();
+                } finally {
+                    quietClose(is);
+                }
+            }
+            return state;
+        }
+
+        private void saveSegmentProgress(Segment segment) {
+            synchronized (mSegmentState) {
+                if (segment.wholePart) {
+                    // The part cannot be resumed from the middle, so its
+                    // segments are only saved as done once it is complete.
+                    boolean complete = segment.done == segment.end;
+                    for(long start = 0; start < segment.end;
+                            start += MAX_SEGMENT_SIZE) {
+                        long length = Math.min(segment.end - start,
+                                MAX_SEGMENT_SIZE);
+                        mSegmentState.setProperty(
+                                Segment.getKey(segment.dest,
+                                        segment.partOffset + start),
+                                Long.toString(complete ? length : 0));
+                    }
+                } else {
+                    mSegmentState.setProperty(segment.getKey(),
+                            Long.toString(segment.done));
+                }
+                try {
+                    saveSegmentState();
+                } catch (IOException e) {
+                    // The saved progress lags behind, which only means that
+                    // some bytes are downloaded again.
+                    Log.w(LOG_TAG, "Unable to write segments file", e);
+                }
+            }
+        }
+
+        private void resetSegmentProgress(PartDownload part) {
+            synchronized (mSegmentState) {
+                for(long start = 0; start < part.mPart.size;
+                        start += MAX_SEGMENT_SIZE) {
+                    mSegmentState.setProperty(Segment.getKey(part.mFile.dest,
+                            part.mPartOffset + start), "0");
+                }
+                try {
+                    saveSegmentState();
+                } catch (IOException e) {
+                    // The file fails the verification and is downloaded
+                    // again entirely.
+                    Log.w(LOG_TAG, "Unable to write segments file", e);
+                }
+            }
+        }
+
+        /**
+         * Writes the progress of the segments. The file is replaced atomically
+         * so that it is never left half written.
+         */
+        private void saveSegmentState() throws IOException {
+            synchronized (mSegmentState) {
+                File stateFile = new File(mDataDir, LOCAL_SEGMENTS_FILE);
+                File tempFile = new File(mDataDir, LOCAL_SEGMENTS_FILE + "_temp");
+                FileOutputStream os = null;
+                try {
+                    os = new FileOutputStream(tempFile);
+                    mSegmentState.store(os, null);
+                    os.close();
+                    os = null;
+                    if (!tempFile.renameTo(stateFile)) {
+                        throw new IOException("Unable to rename segments file");
+                    }
+                } finally {
+                    quietClose(os);
+                }
+            }
+        }
+
         private void downloadFile(Config.File file) throws DownloaderException,
                 FileNotFoundException, IOException, ClientProtocolException {
             boolean append = false;
@@ -619,7 +1360,7 @@ public class DownloaderActivity extends Activity {
             if (dest.exists() && dest.isFile()) {
                 append = true;
                 bytesToSkip = dest.length();
-                mDownloadedSize += bytesToSkip;
+                addDownloadedSize(bytesToSkip);
             }
             FileOutputStream os = null;
             long offsetOfCurrentPart = 0;
@@ -628,36 +1369,31 @@ public class DownloaderActivity extends Activity {
                     // The part.size==0 check below allows us to download
                     // zero-length files.
                     if ((part.size > bytesToSkip) || (part.size == 0)) {
-                        MessageDigest digest = null;
-                        if (part.md5 != null) {
-                            digest = createDigest();
-                            if (bytesToSkip > 0) {
-                                FileInputStream is = openInput(file.dest);
-                                try {
-                                    is.skip(offsetOfCurrentPart);
-                                    readIntoDigest(is, bytesToSkip, digest);
-                                } finally {
-                                    quietClose(is);
-                                }
-                            }
+                        DigestCheckpoint checkpoint = null;
+                        if (part.checksum != null) {
+                            checkpoint = getDigestCheckpoint(file, part,
+                                    offsetOfCurrentPart, bytesToSkip);
                         }
                         if (os == null) {
                             os = openOutput(file.dest, append);
                         }
                         downloadPart(part.src, os, bytesToSkip,
-                                part.size, digest);
-                        if (digest != null) {
-                            String hash = getHash(digest);
-                            if (!hash.equalsIgnoreCase(part.md5)) {
-                                Log.e(LOG_TAG, "web MD5 checksums don't match. "
+                                part.size, checkpoint);
+                        if (checkpoint != null) {
+                            mDigestCheckpoints.remove(part);
+                            String hash = getHash(checkpoint.digest);
+                            if (!hash.equalsIgnoreCase(part.checksum)) {
+                                Log.e(LOG_TAG, "web " + part.checksumType
+                                        + " checksums don't match. "
                                         + part.src + "\nExpected "
-                                        + part.md5 + "\n     got " + hash);
+                                        + part.checksum + "\n     got " + hash);
                                 quietClose(os);
                                 dest.delete();
                                 throw new DownloaderException(
                                       "Received bad data from web server");
                             } else {
-                               Log.i(LOG_TAG, "web MD5 checksum matches.");
+                               Log.i(LOG_TAG, "web " + part.checksumType
+                                       + " checksum matches.");
                             }
                         }
                     }
@@ -672,17 +1408,61 @@ public class DownloaderActivity extends Activity {
         private void cleanup() throws IOException {
             File filtered = new File(mDataDir, LOCAL_FILTERED_FILE);
             noisyDelete(filtered);
+            new File(mDataDir, LOCAL_SEGMENTS_FILE).delete();
             File tempConfig = new File(mDataDir, LOCAL_CONFIG_FILE_TEMP);
             File realConfig = new File(mDataDir, LOCAL_CONFIG_FILE);
             tempConfig.renameTo(realConfig);
         }
 
+        /**
+         * Verifies the files concurrently, on as many threads as there are
+         * cores but at least two, so that reading a file overlaps hashing
+         * another one. The result of each file is reported as soon as it
+         * is known.
+         */
         private void verify(Config config) throws DownloaderException,
         ClientProtocolException, IOException {
             Log.i(LOG_TAG, "Verifying...");
+            synchronized (this) {
+                mVerifiedSize = 0;
+                mTotalVerifySize = config.getSize();
+            }
+            addVerifiedSize(0);
+            int fileCount = config.mFiles.size();
+            if (fileCount == 0) {
+                return;
+            }
+            int threadCount = Math.min(fileCount,
+                    Math.max(2, Runtime.getRuntime().availableProcessors()));
+            ExecutorService executor = createExecutor(threadCount,
+                    "Verifier #");
+            CompletionService<FileVerification> verifications =
+                new ExecutorCompletionService<FileVerification>(executor);
+            HashSet<Config.File> failedFiles = new HashSet<Config.File>();
+            try {
+                for(Config.File file : config.mFiles) {
+                    verifications.submit(new FileVerification(file));
+                }
+                for(int i = 0; i < fileCount; i++) {
+                    FileVerification verification =
+                        getResult(verifications.take());
+                    reportFileVerified(verification.mFile.dest,
+                            verification.mPassed);
+                    if (!verification.mPassed) {
+                        failedFiles.add(verification.mFile);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.i(LOG_TAG, "downloader thread interrupted.");
+                throw new DownloaderException("Thread interrupted");
+            } finally {
+                executor.shutdownNow();
+                awaitTermination(executor);
+            }
+
             String failFiles = null;
             for(Config.File file : config.mFiles) {
-                if (! verifyFile(file, true) ) {
+                if (failedFiles.contains(file)) {
                     if (failFiles == null) {
                         failFiles = file.dest;
                     } else {
@@ -692,15 +1472,35 @@ public class DownloaderActivity extends Activity {
             }
             if (failFiles != null) {
                 throw new DownloaderException(
-                        "Possible bad SD-Card. MD5 sum incorrect for file(s) "
+                        "Possible bad SD-Card. Checksum incorrect for file(s) "
                         + failFiles);
             }
         }
 
+        /**
+         * Verifies one file, deleting it if it is invalid.
+         */
+        private class FileVerification implements Callable<FileVerification> {
+            FileVerification(Config.File file) {
+                mFile = file;
+            }
+
+            public FileVerification call() throws Exception {
+                mPassed = verifyFile(mFile, true);
+                return this;
+            }
+
+            final Config.File mFile;
+            boolean mPassed;
+        }
+
+        /**
+         * Checks the size and the checksums of a file. Can be called from
+         * several threads at once.
+         */
         private boolean verifyFile(Config.File file, boolean deleteInvalid)
                 throws FileNotFoundException, DownloaderException, IOException {
             Log.i(LOG_TAG, "verifying " + file.dest);
-            reportVerifying();
             File dest = new File(mDataDir, file.dest);
             if (! dest.exists()) {
                 Log.e(LOG_TAG, "File does not exist: " + dest.toString());
@@ -718,17 +1518,25 @@ public class DownloaderActivity extends Activity {
             }
             FileInputStream is = new FileInputStream(dest);
             try {
+                FileChannel channel = is.getChannel();
+                ByteBuffer buffer = mVerifyBuffers.get();
+                long offsetOfPart = 0;
                 for(Config.File.Part part : file.mParts) {
-                    if (part.md5 == null) {
+                    if (part.checksum == null) {
+                        offsetOfPart += part.size;
+                        addVerifiedSize(part.size);
                         continue;
                     }
-                    MessageDigest digest = createDigest();
-                    readIntoDigest(is, part.size, digest);
+                    MessageDigest digest = createDigest(part.checksumType);
+                    readIntoDigest(channel, offsetOfPart, part.size, digest,
+                            buffer, true);
+                    offsetOfPart += part.size;
                     String hash = getHash(digest);
-                    if (!hash.equalsIgnoreCase(part.md5)) {
-                        Log.e(LOG_TAG, "MD5 checksums don't match. " +
+                    if (!hash.equalsIgnoreCase(part.checksum)) {
+                        Log.e(LOG_TAG, part.checksumType
+                                + " checksums don't match. " +
                                 part.src + " Expected "
-                                + part.md5 + " got " + hash);
+                                + part.checksum + " got " + hash);
                         if (deleteInvalid) {
                             quietClose(is);
                             dest.delete();
@@ -742,6 +1550,67 @@ public class DownloaderActivity extends Activity {
             return true;
         }
 
+        /**
+         * Reads a range of a file into a digest with positional reads, which
+         * lets several threads share the channel. The buffer is a heap
+         * buffer whose array is hashed in place: MessageDigest copies the
+         * content of a direct buffer into a new array on every update.
+         * @param reportProgress true to count the bytes read as verified.
+         */
+        private void readIntoDigest(FileChannel channel, long position,
+                long bytesToRead, MessageDigest digest, ByteBuffer buffer,
+                boolean reportProgress)
+                throws IOException {
+            while(bytesToRead > 0) {
+                buffer.clear();
+                if (bytesToRead < buffer.capacity()) {
+                    buffer.limit((int) bytesToRead);
+                }
+                int bytesRead = channel.read(buffer, position);
+                if (bytesRead < 0) {
+                    break;
+                }
+                digest.update(buffer.array(), buffer.arrayOffset(),
+                        bytesRead);
+                position += bytesRead;
+                bytesToRead -= bytesRead;
+                if (reportProgress) {
+                    addVerifiedSize(bytesRead);
+                }
+            }
+        }
+
+        /**
+         * Returns the digest of the bytes of a part already written to the
+         * destination file. The digest computed by a previous attempt is
+         * reused if it covers exactly these bytes, so that a retry after a
+         * network error does not read them again.
+         */
+        private DigestCheckpoint getDigestCheckpoint(Config.File file,
+                Config.File.Part part, long offsetOfPart, long bytesWritten)
+            throws DownloaderException, IOException {
+            DigestCheckpoint checkpoint = mDigestCheckpoints.get(part);
+            if ((checkpoint != null) && (checkpoint.length == bytesWritten)) {
+                Log.i(LOG_TAG, "Resuming digest of " + part.src + " at "
+                        + bytesWritten);
+                return checkpoint;
+            }
+            checkpoint = new DigestCheckpoint(
+                    createDigest(part.checksumType));
+            if (bytesWritten > 0) {
+                FileInputStream is = openInput(file.dest);
+                try {
+                    is.skip(offsetOfPart);
+                    readIntoDigest(is, bytesWritten, checkpoint.digest);
+                } finally {
+                    quietClose(is);
+                }
+                checkpoint.length = bytesWritten;
+            }
+            mDigestCheckpoints.put(part, checkpoint);
+            return checkpoint;
+        }
+
         private void readIntoDigest(FileInputStream is, long bytesToRead,
                 MessageDigest digest) throws IOException {
             while(bytesToRead > 0) {
@@ -756,27 +1625,20 @@ public class DownloaderActivity extends Activity {
             }
         }
 
-        private MessageDigest createDigest() throws DownloaderException {
+        private MessageDigest createDigest(String checksumType)
+            throws DownloaderException {
             MessageDigest digest;
             try {
-                digest = MessageDigest.getInstance("MD5");
+                digest = createChecksumDigest(checksumType);
             } catch (NoSuchAlgorithmException e) {
-                throw new DownloaderException("Couldn't create MD5 digest");
+                throw new DownloaderException("Couldn't create "
+                        + checksumType + " digest");
             }
             return digest;
         }
 
         private void updateDigest(MessageDigest digest, int bytesRead) {
-            if (bytesRead == mFileIOBuffer.length) {
-                digest.update(mFileIOBuffer);
-            } else {
-                // Work around an awkward API: Create a
-                // new buffer with just the valid bytes
-                byte[] temp = new byte[bytesRead];
-                System.arraycopy(mFileIOBuffer, 0,
-                        temp, 0, bytesRead);
-                digest.update(temp);
-            }
+            digest.update(mFileIOBuffer, 0, bytesRead);
         }
 
         private String getHash(MessageDigest digest) {
@@ -790,40 +1652,139 @@ public class DownloaderActivity extends Activity {
 
 
         /**
-         * Ensure we have sizes for all the items.
-         * @param config
-         * @throws ClientProtocolException
-         * @throws IOException
-         * @throws DownloaderException
+         * Probes the sizes of the parts whose size is unknown, with up to
+         * MAX_PROBES concurrent HEAD requests. Each file starts downloading
+         * as soon as the sizes of all its parts are known, and the expected
+         * total grows as the probes finish. The sizes are saved in the local
+         * config so that a resumed download does not probe them again.
          */
-        private void getSizes(Config config)
-            throws ClientProtocolException, IOException, DownloaderException {
-            for (Config.File file : config.mFiles) {
+        private void getSizes(Config config, ArrayList<Config.File> files,
+                ExecutorService executor)
+            throws InterruptedException, DownloaderException, IOException {
+            CompletionService<SizeProbe> probes =
+                new ExecutorCompletionService<SizeProbe>(executor);
+            HashMap<Config.File, Integer> unknownParts =
+                new HashMap<Config.File, Integer>();
+            int pendingProbes = 0;
+            for(Config.File file : files) {
+                int count = 0;
                 for(Config.File.Part part : file.mParts) {
                     if (part.size < 0) {
-                        part.size = getSize(part.src);
+                        probes.submit(new SizeProbe(file, part));
+                        count++;
                     }
                 }
+                unknownParts.put(file, count);
+                pendingProbes += count;
+            }
+
+            boolean probed = false;
+            try {
+                while (pendingProbes > 0) {
+                    SizeProbe probe = getResult(probes.take());
+                    pendingProbes--;
+                    probed = true;
+                    probe.mPart.size = probe.mSize;
+                    if (probe.mSize >= 0) {
+                        addExpectedSize(probe.mSize);
+                    }
+                    int remaining = unknownParts.get(probe.mFile) - 1;
+                    unknownParts.put(probe.mFile, remaining);
+                    if (remaining == 0) {
+                        scheduleFile(probe.mFile);
+                    }
+                    waitForSegments(false);
+                }
+            } finally {
+                if (probed) {
+                    saveLocalConfig(config);
+                }
             }
-            mTotalExpectedSize = config.getSize();
         }
 
-        private long getSize(String url) throws ClientProtocolException,
-            IOException {
-            url = normalizeUrl(url);
-            Log.i(LOG_TAG, "Head " + url);
-            HttpHead httpGet = new HttpHead(url);
-            HttpResponse response = mHttpClient.execute(httpGet);
-            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-                throw new IOException("Unexpected Http status code "
-                    + response.getStatusLine().getStatusCode());
+        /**
+         * Gets the size of a part with a HEAD request.
+         */
+        private class SizeProbe implements Callable<SizeProbe> {
+            SizeProbe(Config.File file, Config.File.Part part) {
+                mFile = file;
+                mPart = part;
             }
-            Header[] clHeaders = response.getHeaders("Content-Length");
-            if (clHeaders.length > 0) {
-                Header header = clHeaders[0];
-                return Long.parseLong(header.getValue());
+
+            public SizeProbe call() throws Exception {
+                String url = normalizeUrl(mPart.src);
+                Log.i(LOG_TAG, "Head " + url);
+                HttpHead httpHead = new HttpHead(url);
+                addActiveRequest(httpHead);
+                try {
+                    HttpResponse response = mHttpClient.execute(httpHead);
+                    if (response.getStatusLine().getStatusCode()
+                            != HttpStatus.SC_OK) {
+                        throw new IOException("Unexpected Http status code "
+                            + response.getStatusLine().getStatusCode());
+                    }
+                    mSize = -1;
+                    Header[] clHeaders = response.getHeaders("Content-Length");
+                    if (clHeaders.length > 0) {
+                        Header header = clHeaders[0];
+                        mSize = Long.parseLong(header.getValue());
+                    }
+                } finally {
+                    removeActiveRequest(httpHead);
+                }
+                return this;
+            }
+
+            final Config.File mFile;
+            final Config.File.Part mPart;
+            long mSize;
+        }
+
+        /**
+         * Writes the config, including the sizes found so far, over the
+         * local copy of the config.
+         */
+        private void saveLocalConfig(Config config) {
+            File configFile = new File(mDataDir, LOCAL_CONFIG_FILE_TEMP);
+            File tempFile = new File(mDataDir, LOCAL_CONFIG_FILE_TEMP + "_new");
+            FileOutputStream os = null;
+            try {
+                os = new FileOutputStream(tempFile);
+                XmlSerializer serializer = Xml.newSerializer();
+                serializer.setOutput(os, "UTF-8");
+                serializer.startDocument("UTF-8", null);
+                serializer.startTag(null, "config");
+                serializer.attribute(null, "version", config.version);
+                for(Config.File file : config.mFiles) {
+                    serializer.startTag(null, "file");
+                    serializer.attribute(null, "dest", file.dest);
+                    for(Config.File.Part part : file.mParts) {
+                        serializer.startTag(null, "part");
+                        serializer.attribute(null, "src", part.src);
+                        if (part.checksum != null) {
+                            serializer.attribute(null, part.checksumType,
+                                    part.checksum);
+                        }
+                        if (part.size >= 0) {
+                            serializer.attribute(null, "size",
+                                    Long.toString(part.size));
+                        }
+                        serializer.endTag(null, "part");
+                    }
+                    serializer.endTag(null, "file");
+                }
+                serializer.endTag(null, "config");
+                serializer.endDocument();
+                os.close();
+                os = null;
+                if (!tempFile.renameTo(configFile)) {
+                    Log.w(LOG_TAG, "Unable to rename local config file");
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Unable to save sizes in local config file", e);
+            } finally {
+                quietClose(os);
             }
-            return -1;
         }
 
         private String normalizeUrl(String url) throws MalformedURLException {
@@ -833,10 +1794,15 @@ public class DownloaderActivity extends Activity {
         private InputStream get(String url, long startOffset,
                 long expectedLength)
             throws ClientProtocolException, IOException {
-            url = normalizeUrl(url);
-            Log.i(LOG_TAG, "Get " + url);
+            mHttpGet = new HttpGet(normalizeUrl(url));
+            return get(mHttpGet, startOffset, expectedLength);
+        }
+
+        private InputStream get(HttpGet request, long startOffset,
+                long expectedLength)
+            throws ClientProtocolException, IOException {
+            Log.i(LOG_TAG, "Get " + request.getURI());
 
-            mHttpGet = new HttpGet(url);
             int expectedStatusCode = HttpStatus.SC_OK;
             if (startOffset > 0) {
                 String range = "bytes=" + startOffset + "-";
@@ -844,10 +1810,10 @@ public class DownloaderActivity extends Activity {
                     range += expectedLength-1;
                 }
                 Log.i(LOG_TAG, "requesting byte range " + range);
-                mHttpGet.addHeader("Range", range);
+                request.addHeader("Range", range);
                 expectedStatusCode = HttpStatus.SC_PARTIAL_CONTENT;
             }
-            HttpResponse response = mHttpClient.execute(mHttpGet);
+            HttpResponse response = mHttpClient.execute(request);
             long bytesToSkip = 0;
             int statusCode = response.getStatusLine().getStatusCode();
             if (statusCode != expectedStatusCode) {
@@ -857,6 +1823,11 @@ public class DownloaderActivity extends Activity {
                     Log.i(LOG_TAG, "Byte range request ignored");
                     bytesToSkip = startOffset;
                 } else {
+                    // Give the connection back to the pool.
+                    HttpEntity entity = response.getEntity();
+                    if (entity != null) {
+                        entity.consumeContent();
+                    }
                     throw new IOException("Unexpected Http status code "
                             + statusCode + " expected "
                             + expectedStatusCode);
@@ -870,6 +1841,36 @@ public class DownloaderActivity extends Activity {
             return is;
         }
 
+        /**
+         * Requests a byte range, end excluded, of a part.
+         * @return the content of the range, or null if the server ignored
+         * the range and sends the part from its start. The request must then
+         * be aborted.
+         */
+        private InputStream getRange(HttpGet request, long start, long end)
+            throws ClientProtocolException, IOException {
+            String range = "bytes=" + start + "-" + (end - 1);
+            Log.i(LOG_TAG, "Get " + request.getURI() + " " + range);
+            request.addHeader("Range", range);
+            HttpResponse response = mHttpClient.execute(request);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_OK) {
+                Log.i(LOG_TAG, "Byte range request ignored");
+                return null;
+            }
+            if (statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                // Give the connection back to the pool.
+                HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                throw new IOException("Unexpected Http status code "
+                        + statusCode + " expected "
+                        + HttpStatus.SC_PARTIAL_CONTENT);
+            }
+            return response.getEntity().getContent();
+        }
+
         private File download(String src, String dest)
             throws DownloaderException, ClientProtocolException, IOException {
             File destFile = new File(mDataDir, dest);
@@ -883,7 +1884,8 @@ public class DownloaderActivity extends Activity {
         }
 
         private void downloadPart(String src, FileOutputStream os,
-                long startOffset, long expectedLength, MessageDigest digest)
+                long startOffset, long expectedLength,
+                DigestCheckpoint checkpoint)
             throws ClientProtocolException, IOException, DownloaderException {
             boolean lengthIsKnown = expectedLength >= 0;
             if (startOffset < 0) {
@@ -897,7 +1899,7 @@ public class DownloaderActivity extends Activity {
             }
             InputStream is = get(src, startOffset, expectedLength);
             try {
-                long bytesRead = downloadStream(is, os, digest);
+                long bytesRead = downloadStream(is, os, checkpoint);
                 if (lengthIsKnown) {
                     long expectedBytesRead = expectedLength - startOffset;
                     if (expectedBytesRead != bytesRead) {
@@ -929,6 +1931,20 @@ public class DownloaderActivity extends Activity {
             return os;
         }
 
+        private RandomAccessFile openRandomAccess(String dest)
+            throws FileNotFoundException, DownloaderException {
+            File destFile = new File(mDataDir, dest);
+            File parent = destFile.getParentFile();
+            if (! parent.exists()) {
+                parent.mkdirs();
+            }
+            if (! parent.exists()) {
+                throw new DownloaderException("Could not create directory "
+                        + parent.toString());
+            }
+            return new RandomAccessFile(destFile, "rw");
+        }
+
         private FileInputStream openInput(String src)
             throws FileNotFoundException, DownloaderException {
             File srcFile = new File(mDataDir, src);
@@ -944,7 +1960,7 @@ public class DownloaderActivity extends Activity {
         }
 
         private long downloadStream(InputStream is, FileOutputStream os,
-                MessageDigest digest)
+                DigestCheckpoint checkpoint)
                 throws DownloaderException, IOException {
             long totalBytesRead = 0;
             while(true){
@@ -957,23 +1973,82 @@ public class DownloaderActivity extends Activity {
                 if (bytesRead < 0) {
                     break;
                 }
-                if (digest != null) {
-                    updateDigest(digest, bytesRead);
-                }
                 totalBytesRead += bytesRead;
                 os.write(mFileIOBuffer, 0, bytesRead);
-                mDownloadedSize += bytesRead;
-                int progress = (int) (Math.min(mTotalExpectedSize,
-                        mDownloadedSize * 10000 /
-                        Math.max(1, mTotalExpectedSize)));
-                if (progress != mReportedProgress) {
-                    mReportedProgress = progress;
-                    reportProgress(progress);
+                // The digest only covers bytes written to the file, so that
+                // it can be resumed from the length of the file.
+                if (checkpoint != null) {
+                    updateDigest(checkpoint.digest, bytesRead);
+                    checkpoint.length += bytesRead;
                 }
+                addDownloadedSize(bytesRead);
             }
             return totalBytesRead;
         }
 
+        /**
+         * Accounts for downloaded bytes and reports the progress if it
+         * changed. Called by all the download threads.
+         */
+        private synchronized void addDownloadedSize(long bytesRead) {
+            mDownloadedSize += bytesRead;
+            updateProgress();
+        }
+
+        private synchronized void addDownloadedSize(PartDownload part,
+                long bytesRead) {
+            part.mCounted += bytesRead;
+            addDownloadedSize(bytesRead);
+        }
+
+        /**
+         * Removes the bytes of a part from the progress, before the part is
+         * downloaded again.
+         */
+        private synchronized void resetDownloadedSize(PartDownload part) {
+            mDownloadedSize -= part.mCounted;
+            part.mCounted = 0;
+            updateProgress();
+        }
+
+        /**
+         * Adds the size of a probed part to the expected total.
+         */
+        private synchronized void addExpectedSize(long size) {
+            mTotalExpectedSize += size;
+            updateProgress();
+        }
+
+        /**
+         * Accounts for verified bytes and reports the progress if it
+         * changed. Called by all the verification threads. The progress is
+         * unknown while files are checked before the download.
+         */
+        private synchronized void addVerifiedSize(long bytesRead) {
+            mVerifiedSize += bytesRead;
+            int progress = -1;
+            if (mTotalVerifySize > 0) {
+                progress = (int) (Math.min(10000,
+                        mVerifiedSize * 10000 / mTotalVerifySize));
+            }
+            if (progress != mReportedVerifyProgress) {
+                mReportedVerifyProgress = progress;
+                reportVerifying(progress);
+            }
+        }
+
+        private synchronized void updateProgress() {
+            // The total grows while sizes are probed, so the downloaded size
+            // can briefly exceed it.
+            int progress = (int) (Math.min(10000,
+                    mDownloadedSize * 10000 /
+                    Math.max(1, mTotalExpectedSize)));
+            if (progress != mReportedProgress) {
+                mReportedProgress = progress;
+                reportProgress(progress);
+            }
+        }
+
         private DefaultHttpClient mHttpClient;
         private HttpGet mHttpGet;
         private String mFileConfigUrl;
@@ -984,13 +2059,41 @@ public class DownloaderActivity extends Activity {
         private long mTotalExpectedSize;
         private long mDownloadedSize;
         private int mReportedProgress;
+        private Properties mSegmentState;
+        private final HashSet<HttpRequestBase> mActiveRequests =
+            new HashSet<HttpRequestBase>();
+        private CompletionService<SegmentDownload> mSegmentService;
+        private int mPendingSegments;
+        // Parts whose server answered a byte range request with the whole
+        // part, kept across retries.
+        private final HashSet<Config.File.Part> mUnrangedParts =
+            new HashSet<Config.File.Part>();
+        private ArrayList<Config.File> mSequentialFiles;
+        // Digests of the parts being downloaded sequentially, kept across
+        // retries.
+        private final HashMap<Config.File.Part, DigestCheckpoint>
+            mDigestCheckpoints =
+                new HashMap<Config.File.Part, DigestCheckpoint>();
+        private long mTotalVerifySize;
+        private long mVerifiedSize;
+        private int mReportedVerifyProgress = Integer.MIN_VALUE;
+        // Each verification thread reads through its own buffer.
+        private final ThreadLocal<ByteBuffer> mVerifyBuffers =
+            new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate(VERIFY_BUFFER_SIZE);
+            }
+        };
         private final static int CHUNK_SIZE = 32 * 1024;
+        private final static int VERIFY_BUFFER_SIZE = 256 * 1024;
         byte[] mFileIOBuffer = new byte[CHUNK_SIZE];
     }
 
     private final static String LOG_TAG = "Downloader";
     private TextView mProgress;
     private TextView mTimeRemaining;
+    private TextView mVerifyStatus;
     private final DecimalFormat mPercentFormat = new DecimalFormat("0.00 %");
     private long mStartTime;
     private Thread mDownloadThread;
@@ -1004,6 +2107,25 @@ public class DownloaderActivity extends Activity {
     private final static String LOCAL_CONFIG_FILE = ".downloadConfig";
     private final static String LOCAL_CONFIG_FILE_TEMP = ".downloadConfig_temp";
     private final static String LOCAL_FILTERED_FILE = ".downloadConfig_filtered";
+    private final static String LOCAL_SEGMENTS_FILE = ".downloadConfig_segments";
+
+    private final static String CHECKSUM_CRC32 = "crc32";
+    private final static String CHECKSUM_MD5 = "md5";
+    private final static String CHECKSUM_SHA256 = "sha256";
+    // Supported checksum attributes, fastest first as measured by
+    // ChecksumBenchmark.
+    final static String[] CHECKSUM_TYPES = {
+        CHECKSUM_CRC32, CHECKSUM_MD5, CHECKSUM_SHA256
+    };
+
+    // Number of connections used to download the segments in parallel.
+    private final static int MAX_CONNECTIONS = 4;
+    // Number of concurrent HEAD requests used to probe unknown part sizes.
+    private final static int MAX_PROBES = 4;
+    // Parts larger than this are split into several segments.
+    private final static long MAX_SEGMENT_SIZE = 1024 * 1024;
+    // Time given to the segment threads to stop when the download stops.
+    private final static long SHUTDOWN_TIMEOUT = 5 * MS_PER_SECOND;
     private final static String EXTRA_CUSTOM_TEXT = "DownloaderActivity_custom_text";
     private final static String EXTRA_FILE_CONFIG_URL = "DownloaderActivity_config_url";
     private final static String EXTRA_CONFIG_VERSION = "DownloaderActivity_config_version";
@@ -1014,6 +2136,7 @@ public class DownloaderActivity extends Activity {
     private final static int MSG_DOWNLOAD_FAILED = 1;
     private final static int MSG_REPORT_PROGRESS = 2;
     private final static int MSG_REPORT_VERIFYING = 3;
+    private final static int MSG_REPORT_FILE_VERIFIED = 4;
 
     private final Handler mHandler = new Handler() {
         @Override
@@ -1029,7 +2152,10 @@ public class DownloaderActivity extends Activity {
                 onReportProgress(msg.arg1);
                 break;
             case MSG_REPORT_VERIFYING:
-                onReportVerifying();
+                onReportVerifying(msg.arg1);
+                break;
+            case MSG_REPORT_FILE_VERIFIED:
+                onReportFileVerified((String) msg.obj, msg.arg1 != 0);
                 break;
             default:
                 throw new IllegalArgumentException("Unknown message id "